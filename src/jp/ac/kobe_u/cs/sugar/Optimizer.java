@@ -0,0 +1,207 @@
+package jp.ac.kobe_u.cs.sugar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import jp.ac.kobe_u.cs.sugar.csp.CSP;
+import jp.ac.kobe_u.cs.sugar.csp.IntegerDomain;
+import jp.ac.kobe_u.cs.sugar.csp.IntegerVariable;
+import jp.ac.kobe_u.cs.sugar.csp.LinearLiteral;
+import jp.ac.kobe_u.cs.sugar.csp.LinearSum;
+import jp.ac.kobe_u.cs.sugar.csp.Operator;
+import jp.ac.kobe_u.cs.sugar.encoder.Decoder;
+import jp.ac.kobe_u.cs.sugar.encoder.Encoder;
+
+/**
+ * Optimizer searches the optimum value of the objective variable
+ * by repeatedly solving the encoded CNF with bound clauses on the
+ * objective digits (the most significant digit first).
+ * Only the objective variable is decoded for each model found,
+ * and the search bound is tightened by its value.
+ * When satFileName is null, the CNF is written to the standard input
+ * of the SAT solver for each call.
+ */
+public class Optimizer {
+	/**
+	 * Search strategies for each objective digit.
+	 */
+	public enum Strategy {
+		/**
+		 * Binary search
+		 */
+		BINARY,
+		/**
+		 * Improves the best model found until UNSAT
+		 */
+		SAT_UNSAT,
+		/**
+		 * Starts from the best possible value until SAT
+		 */
+		UNSAT_SAT
+	}
+
+	private final CSP csp;
+	private final Encoder encoder;
+	private final Decoder decoder;
+	private final SatSolver solver;
+	private final String satFileName;
+	private final String outFileName;
+	private final Strategy strategy;
+	private final List<long[]> bounds = new ArrayList<long[]>();
+	private BitSet bestModel = null;
+	private int probes = 0;
+
+	public Optimizer(Encoder encoder, Decoder decoder, SatSolver solver,
+			String satFileName, String outFileName, Strategy strategy) {
+		this.csp = encoder.getCSP();
+		this.encoder = encoder;
+		this.decoder = decoder;
+		this.solver = solver;
+		this.satFileName = satFileName;
+		this.outFileName = outFileName;
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Returns the best model found, or null.
+	 * @return the best model found
+	 */
+	public BitSet getBestModel() {
+		return bestModel;
+	}
+
+	private BitSet solve(long[] probe) throws SugarException, IOException {
+		final List<long[]> clauses = new ArrayList<long[]>(bounds);
+		if (probe != null) {
+			clauses.add(probe);
+		}
+		if (satFileName == null) {
+			solver.solve(new SatSolver.Input() {
+				public void write(OutputStream out) throws SugarException, IOException {
+					encoder.encode(out, clauses);
+				}
+			}, outFileName);
+		} else {
+			encoder.getWriter().setExtraClauses(clauses);
+			solver.solve(satFileName, outFileName);
+		}
+		probes++;
+		return decoder.readModel(outFileName);
+	}
+
+	private long getCodeLE(IntegerVariable digit, long value) throws SugarException {
+		final LinearSum ls = new LinearSum(1, digit, -value);
+		return encoder.getCode(new LinearLiteral(ls, Operator.LE));
+	}
+
+	private int indexOf(long[] values, IntegerVariable digit) {
+		final long value = digit.getValue() - digit.getOffset();
+		int lo = 0;
+		int hi = values.length - 1;
+		while (lo < hi) {
+			final int i = (lo + hi) / 2;
+			if (values[i] < value) {
+				lo = i + 1;
+			} else {
+				hi = i;
+			}
+		}
+		return lo;
+	}
+
+	private void found(BitSet model) throws SugarException {
+		final IntegerVariable v = csp.getObjectiveVariable();
+		final long value0 = v.getValue();
+		final long value = decoder.decodeVariable(v, model);
+		if (bestModel == null) {
+			Logger.println("s SATISFIABLE");
+		}
+		if (bestModel == null || value != value0) {
+			Logger.println("o " + value);
+		}
+		bestModel = model;
+	}
+
+	/**
+	 * Searches the optimum.
+	 * @return true when a model is found
+	 */
+	public boolean optimize() throws SugarException, IOException {
+		final IntegerVariable v = csp.getObjectiveVariable();
+		final boolean minimize = csp.getObjective() == CSP.Objective.MINIMIZE;
+		Logger.info("OBJECTIVE " + (minimize ? "minimize " : "maximize ")
+				+ v.getName() + " (" + strategy + ")");
+		BitSet model = solve(null);
+		if (model == null) {
+			return false;
+		}
+		found(model);
+		final IntegerVariable[] digits = v.getDigits();
+		for (int d = digits.length - 1; d >= 0; d--) {
+			final IntegerVariable digit = digits[d];
+			final String digitName = digits.length > 1 ?
+				v.getName() + "[" + d + "]" : v.getName();
+			final IntegerDomain domain = digit.getDomain();
+			final long[] values = domain.toArray();
+			if (minimize) {
+				// values[lo] <= optimum <= values[hi], values[hi] is achieved
+				int lo = 0;
+				int hi = indexOf(values, digit);
+				while (lo < hi) {
+					int i;
+					if (strategy == Strategy.SAT_UNSAT) {
+						i = hi - 1;
+					} else if (strategy == Strategy.UNSAT_SAT) {
+						i = lo;
+					} else {
+						i = (lo + hi) / 2;
+					}
+					Logger.info("SEARCHING: " + digitName + " <= " + (values[i] + digit.getOffset()));
+					final long[] probe = { getCodeLE(digit, values[i]) };
+					model = solve(probe);
+					if (model == null) {
+						lo = i + 1;
+					} else {
+						found(model);
+						hi = indexOf(values, digit);
+					}
+				}
+				final long[] bound = { getCodeLE(digit, values[hi]) };
+				bounds.add(bound);
+			} else {
+				// values[lo] <= optimum <= values[hi], values[lo] is achieved
+				int lo = indexOf(values, digit);
+				int hi = values.length - 1;
+				while (lo < hi) {
+					int i;
+					if (strategy == Strategy.SAT_UNSAT) {
+						i = lo + 1;
+					} else if (strategy == Strategy.UNSAT_SAT) {
+						i = hi;
+					} else {
+						i = (lo + hi + 1) / 2;
+					}
+					Logger.info("SEARCHING: " + digitName + " >= " + (values[i] + digit.getOffset()));
+					final long[] probe = { Encoder.negateCode(getCodeLE(digit, values[i-1])) };
+					model = solve(probe);
+					if (model == null) {
+						hi = i - 1;
+					} else {
+						found(model);
+						lo = indexOf(values, digit);
+					}
+				}
+				if (lo > 0) {
+					final long[] bound = { Encoder.negateCode(getCodeLE(digit, values[lo-1])) };
+					bounds.add(bound);
+				}
+			}
+		}
+		Logger.info("OBJECTIVE " + v.getName() + " " + v.getValue()
+				+ " (" + probes + " SAT solver calls)");
+		return true;
+	}
+}
@@ -0,0 +1,146 @@
+package jp.ac.kobe_u.cs.sugar;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SatSolver runs an external SAT solver as a child process.
+ * The command line conventions are the same as those of the azucar script:
+ * minisat, picosat and rsat write their results to the output file,
+ * and the standard output of other solvers is copied to it.
+ * The CNF can also be given to the standard input of the solver
+ * as the file /dev/stdin.
+ */
+public class SatSolver {
+	/**
+	 * Input writes the CNF to the standard input of the solver.
+	 */
+	public interface Input {
+		void write(OutputStream out) throws SugarException, IOException;
+	}
+
+	public static final String STDIN = "/dev/stdin";
+
+	private final String command;
+
+	public SatSolver(String command) {
+		this.command = command;
+	}
+
+	public String getCommand() {
+		return command;
+	}
+
+	/**
+	 * Solves the SAT problem in satFileName and writes the result to outFileName.
+	 * @param satFileName the CNF file name
+	 * @param outFileName the output file name
+	 */
+	public void solve(String satFileName, String outFileName)
+	throws SugarException, IOException {
+		Logger.fine("Solving " + satFileName);
+		solve(satFileName, null, outFileName);
+	}
+
+	/**
+	 * Solves the SAT problem written by input to the standard input of the solver,
+	 * and writes the result to outFileName.
+	 * The output of the solver is read by another thread while input is running.
+	 * @param input the CNF writer
+	 * @param outFileName the output file name
+	 */
+	public void solve(Input input, String outFileName)
+	throws SugarException, IOException {
+		Logger.fine("Solving " + STDIN);
+		solve(STDIN, input, outFileName);
+	}
+
+	private void solve(String satFileName, Input input, final String outFileName)
+	throws SugarException, IOException {
+		new File(outFileName).delete();
+		final List<String> cmd = new ArrayList<String>();
+		for (String s : command.trim().split("\\s+")) {
+			cmd.add(s);
+		}
+		cmd.add(satFileName);
+		final boolean copy;
+		if (command.indexOf("minisat") >= 0) {
+			cmd.add(outFileName);
+			copy = false;
+		} else if (command.indexOf("picosat") >= 0) {
+			cmd.add("-o");
+			cmd.add(outFileName);
+			copy = false;
+		} else if (command.indexOf("rsat") >= 0) {
+			cmd.add("-r");
+			cmd.add(outFileName);
+			copy = false;
+		} else {
+			copy = true;
+		}
+		Logger.fine("CMD " + cmd);
+		final ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.redirectErrorStream(true);
+		final Process process = pb.start();
+		try {
+			if (input == null) {
+				process.getOutputStream().close();
+				read(process, copy ? outFileName : null);
+			} else {
+				final IOException[] exception = new IOException[1];
+				final Thread reader = new Thread("SatSolver") {
+					@Override
+					public void run() {
+						try {
+							read(process, copy ? outFileName : null);
+						} catch (IOException e) {
+							exception[0] = e;
+						}
+					}
+				};
+				reader.start();
+				input.write(process.getOutputStream());
+				process.getOutputStream().close();
+				reader.join();
+				if (exception[0] != null) {
+					throw exception[0];
+				}
+			}
+			process.waitFor();
+		} catch (InterruptedException e) {
+			process.destroy();
+			throw new SugarException("SAT solver interrupted");
+		}
+	}
+
+	private void read(Process process, String outFileName) throws IOException {
+		final BufferedReader rd =
+			new BufferedReader(new InputStreamReader(process.getInputStream()));
+		final BufferedWriter out =
+			outFileName == null ? null : new BufferedWriter(new FileWriter(outFileName));
+		try {
+			String line;
+			while ((line = rd.readLine()) != null) {
+				if (out != null) {
+					out.write(line);
+					out.write('\n');
+				}
+				if (! line.startsWith("v")) {
+					Logger.fine(line);
+				}
+			}
+		} finally {
+			rd.close();
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+}
@@ -5,11 +5,10 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.HashMap;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.Map.Entry;
 import java.util.zip.GZIPInputStream;
 
@@ -19,6 +18,7 @@ import jp.ac.kobe_u.cs.sugar.csp.BooleanVariable;
 import jp.ac.kobe_u.cs.sugar.csp.CSP;
 import jp.ac.kobe_u.cs.sugar.csp.IntegerDomain;
 import jp.ac.kobe_u.cs.sugar.csp.IntegerVariable;
+import jp.ac.kobe_u.cs.sugar.encoder.CNFWriter;
 import jp.ac.kobe_u.cs.sugar.encoder.Decoder;
 import jp.ac.kobe_u.cs.sugar.encoder.Encoder;
 import jp.ac.kobe_u.cs.sugar.encoder.EncodingFactory;
@@ -36,40 +36,49 @@ public class SugarMain {
 	boolean competition = false;
 	boolean incremental = false;
 	boolean propagate = true;
+	int shave = 0;
 	public static int debug = 0;
 	public EncodingFactory ef;
+	public SatSolver solver = new SatSolver("minisat");
+	public Optimizer.Strategy strategy = Optimizer.Strategy.BINARY;
 
-	private List<Expression> toMaxCSP(List<Expression> expressions0) throws SugarException {
+	/**
+	 * Relaxes a constraint for Max-CSP.
+	 * Definitions are returned as they are, and the relaxation variable
+	 * of a constraint is added to sum.
+	 */
+	private List<Expression> toMaxCSP(Expression x, List<Expression> sum) throws SugarException {
 		final List<Expression> expressions = new ArrayList<Expression>();
-		final List<Expression> sum = new ArrayList<Expression>();
-		sum.add(Expression.ADD);
-		int n = 0;
-		for (int i=0; i<expressions0.size(); i++) {
-			Expression x = expressions0.get(i);
-			expressions0.set(i, null);
-			if (x.isSequence(Expression.DOMAIN_DEFINITION)
-				|| x.isSequence(Expression.INT_DEFINITION)
-				|| x.isSequence(Expression.BOOL_DEFINITION)
-				|| x.isSequence(Expression.PREDICATE_DEFINITION)
-				|| x.isSequence(Expression.RELATION_DEFINITION)) {
-				expressions.add(x);
-			} else if (x.isSequence(Expression.OBJECTIVE_DEFINITION)){
-				throw new SugarException("Illegal " + x);
-			} else {
-				// (int _Cn 0 1)
-				// (or (ge _Cn 1) constraint)
-				final Expression c = Expression.create("_C" + n);
-				expressions.add(Expression.create(
-						Expression.INT_DEFINITION,
-						c,
-						Expression.ZERO,
-						Expression.ONE));
-				x = (c.ge(Expression.ONE)).or(x);
-				expressions.add(x);
-				sum.add(c);
-				n++;
-			}
+		if (x.isSequence(Expression.DOMAIN_DEFINITION)
+			|| x.isSequence(Expression.INT_DEFINITION)
+			|| x.isSequence(Expression.BOOL_DEFINITION)
+			|| x.isSequence(Expression.PREDICATE_DEFINITION)
+			|| x.isSequence(Expression.RELATION_DEFINITION)) {
+			expressions.add(x);
+		} else if (x.isSequence(Expression.OBJECTIVE_DEFINITION)){
+			throw new SugarException("Illegal " + x);
+		} else {
+			// (int _Cn 0 1)
+			// (or (ge _Cn 1) constraint)
+			final Expression c = Expression.create("_C" + (sum.size() - 1));
+			expressions.add(Expression.create(
+					Expression.INT_DEFINITION,
+					c,
+					Expression.ZERO,
+					Expression.ONE));
+			x = (c.ge(Expression.ONE)).or(x);
+			expressions.add(x);
+			sum.add(c);
 		}
+		return expressions;
+	}
+
+	/**
+	 * Returns the objective of Max-CSP after all constraints are relaxed.
+	 */
+	private List<Expression> toMaxCSPObjective(List<Expression> sum) {
+		final List<Expression> expressions = new ArrayList<Expression>();
+		final int n = sum.size() - 1;
 		// (int _COST 0 n)
 		// (ge _COST (add _C1 ... _Cn))
 		// (objective minimize _COST)
@@ -88,7 +97,17 @@ public class SugarMain {
 		return expressions;
 	}
 
-	public void encode(String cspFileName, String satFileName, String mapFileName)
+	/**
+	 * Decomposes the expression and converts the results into the CSP.
+	 */
+	private void convert(Expression x, Decomposer decomposer, Converter converter)
+	throws SugarException {
+		for (Expression y : decomposer.decompose(x)) {
+			converter.convert(y);
+		}
+	}
+
+	private Encoder encode(String cspFileName, String satFileName)
 	throws SugarException, IOException {
 		Logger.fine("Parsing " + cspFileName);
 		InputStream in;
@@ -97,30 +116,47 @@ public class SugarMain {
 		} else {
 			in = new FileInputStream(cspFileName);
 		}
-		final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-		Parser parser = new Parser(reader, false);
-		List<Expression> expressions = parser.parse();
-		Logger.info("parsed " + expressions.size() + " expressions");
-		Logger.status();
-		if (maxCSP) {
-			expressions = toMaxCSP(expressions);
-		}
-		Logger.fine("Decomposing CSP");
-		Decomposer decomposer = new Decomposer();
-		expressions = decomposer.decompose(expressions);
-
-		Logger.fine("Converting to clausal form CSP");
+		Parser parser = new Parser(in, false);
 		final CSP csp = new CSP();
+		Decomposer decomposer = new Decomposer();
 		Converter converter = new Converter(csp);
 		converter.INCREMENTAL_PROPAGATE = propagate;
-		converter.convert(expressions);
+		Logger.fine("Parsing, decomposing and converting to clausal form CSP");
+		final List<Expression> sum = new ArrayList<Expression>();
+		sum.add(Expression.ADD);
+		Expression x;
+		while ((x = parser.next()) != null) {
+			if (maxCSP) {
+				for (Expression x1 : toMaxCSP(x, sum)) {
+					convert(x1, decomposer, converter);
+				}
+			} else {
+				convert(x, decomposer, converter);
+			}
+		}
+		in.close();
+		Logger.info("parsed " + parser.getCount() + " expressions");
+		if (maxCSP) {
+			for (Expression x1 : toMaxCSPObjective(sum)) {
+				convert(x1, decomposer, converter);
+			}
+		}
 		Logger.fine("CSP : " + csp.summary());
 		// csp.output(System.out, "c ");
 		if (propagate) {
 			Logger.status();
 			Logger.fine("Propagation in CSP");
+			if (CSP.OPT_DIFFERENCE) {
+				csp.propagateDifferences();
+			}
 			csp.propagate();
 			Logger.fine("CSP : " + csp.summary());
+			if (shave > 0 && ! csp.isUnsatisfiable()) {
+				Logger.status();
+				Logger.fine("Shaving in CSP");
+				csp.shave(shave * 1000L);
+				Logger.fine("CSP : " + csp.summary());
+			}
 		}
 		// csp.output(System.out, "c ");
 		Logger.status();
@@ -130,7 +166,6 @@ public class SugarMain {
 		} else {
 			parser = null;
 			converter = null;
-			expressions = null;
 			decomposer = null;
 			Expression.clear();
 			Runtime.getRuntime().gc();
@@ -139,25 +174,114 @@ public class SugarMain {
 				Logger.info("CSP is unsatisfiable after propagation");
 				Logger.println("s UNSATISFIABLE");
 			} else {
-				Logger.fine("Encoding CSP to SAT : " + satFileName);
+				Logger.fine("Encoding CSP to SAT : " + (satFileName == null ? "-" : satFileName));
 				final Encoder encoder = ef.createEncoder(csp);
 				encoder.reduce();
 				if (csp.isUnsatisfiable()) {
 					Logger.info("CSP is unsatisfiable after propagation");
 					Logger.println("s UNSATISFIABLE");
 				} else {
-					encoder.encode(satFileName, incremental);
-					Logger.fine("Writing map file : " + mapFileName);
-					encoder.outputMap(mapFileName);
-					Logger.status();
-					Logger.info("SAT : " + encoder.summary());}
+					if (satFileName == null) {
+						encoder.count();
+					} else {
+						encoder.encode(satFileName, incremental);
+					}
+					return encoder;
+				}
+			}
+		}
+		return null;
+	}
+
+	public void encode(String cspFileName, String satFileName, String mapFileName)
+	throws SugarException, IOException {
+		final Encoder encoder = encode(cspFileName, satFileName);
+		if (encoder != null) {
+			Logger.fine("Writing map file : " + mapFileName);
+			encoder.outputMap(mapFileName);
+			Logger.status();
+			Logger.info("SAT : " + encoder.summary());
+		}
+	}
+
+	/**
+	 * Encodes the CSP, runs the SAT solver and decodes its result
+	 * with the variable codes kept in memory (no map file is used).
+	 * The optimum is searched by Optimizer when the CSP has an objective.
+	 * When satFileName is "-", no CNF file is written:
+	 * the clauses are counted first, and then they are encoded again
+	 * into the standard input of the SAT solver.
+	 */
+	public void solve(String cspFileName, String satFileName, String outFileName)
+	throws SugarException, IOException {
+		if (incremental) {
+			throw new SugarException("-incremental is not supported with -solve");
+		}
+		if (satFileName.equals("-")) {
+			satFileName = null;
+		}
+		final Encoder encoder = encode(cspFileName, satFileName);
+		if (encoder != null) {
+			Logger.status();
+			Logger.info("SAT : " + encoder.summary());
+			final CSP csp = encoder.getCSP();
+			if (csp.getBases() != null) {
+				ef.setBases(csp.getBases());
+			}
+			if (csp.getObjectiveVariable() == null) {
+				if (satFileName == null) {
+					solver.solve(new SatSolver.Input() {
+						public void write(OutputStream out) throws SugarException, IOException {
+							encoder.encode(out, null);
+						}
+					}, outFileName);
+				} else {
+					solver.solve(satFileName, outFileName);
+				}
+				decode(csp, outFileName);
+			} else {
+				final Decoder decoder = ef.createDecoder(csp);
+				final Optimizer optimizer =
+					new Optimizer(encoder, decoder, solver, satFileName, outFileName, strategy);
+				if (optimizer.optimize()) {
+					decoder.decode(optimizer.getBestModel());
+					output(csp);
+					Logger.println("s OPTIMUM FOUND");
+				} else {
+					Logger.println("s UNSATISFIABLE");
+				}
 			}
 		}
 	}
 
 	public void decode(String outFileName, String mapFileName)
 	throws SugarException, IOException {
-		Logger.fine("Decoding " + outFileName);
+		decode(loadMap(mapFileName), outFileName);
+	}
+
+	/*
+	 * Parses the values "a" or "a..b" of a map line from s[from].
+	 */
+	private static IntegerDomain parseDomain(String[] s, int from)
+	throws SugarException {
+		final int n = s.length - from;
+		final long[] lbs = new long[n];
+		final long[] ubs = new long[n];
+		for (int i = 0; i < n; i++) {
+			final String t = s[from + i];
+			final int pos = t.indexOf("..");
+			if (pos < 0) {
+				lbs[i] = ubs[i] = Long.parseLong(t);
+			} else {
+				lbs[i] = Long.parseLong(t.substring(0, pos));
+				ubs[i] = Long.parseLong(t.substring(pos+2));
+			}
+		}
+		return n == 1 ? new IntegerDomain(lbs[0], ubs[0]) : new IntegerDomain(lbs, ubs);
+	}
+
+	private CSP loadMap(String mapFileName)
+	throws SugarException, IOException {
 		final CSP csp = new CSP();
 		String objectiveVariableName = null;
 		final BufferedReader rd =
@@ -199,36 +323,7 @@ public class SugarMain {
 				final String name = s[1];
 				final long offset = Long.parseLong(s[2]);
 				final long code = Long.parseLong(s[3]);
-				IntegerDomain domain = null;
-				if (s.length == 5) {
-					long lb;
-					long ub;
-					final int pos = s[4].indexOf("..");
-					if (pos < 0) {
-						lb = ub = Long.parseLong(s[4]);
-					} else {
-						lb = Long.parseLong(s[4].substring(0, pos));
-						ub = Long.parseLong(s[4].substring(pos+2));
-					}
-					domain = new IntegerDomain(lb, ub);
-				} else {
-					SortedSet<Long> d = new TreeSet<Long>();
-					for (int i = 4; i < s.length; i++) {
-						long lb;
-						long ub;
-						final int pos = s[i].indexOf("..");
-						if (pos < 0) {
-							lb = ub = Long.parseLong(s[i]);
-						} else {
-							lb = Long.parseLong(s[i].substring(0, pos));
-							ub = Long.parseLong(s[i].substring(pos+2));
-						}
-						for (long value = lb; value <= ub; value++) {
-							d.add(value);
-						}
-					}
-					domain = new IntegerDomain(d);
-				}
+				final IntegerDomain domain = parseDomain(s, 4);
 				final IntegerVariable v = new IntegerVariable(name, domain);
 				v.setOffset(offset);
 				v.setCode(code);
@@ -236,6 +331,12 @@ public class SugarMain {
 				if (name.equals(objectiveVariableName)) {
 					csp.setObjectiveVariable(v);
 				}
+			} else if (s[0].equals("rank")) {
+				final IntegerVariable v = csp.getIntegerVariable(s[1]);
+				if (v == null) {
+					throw new SugarException("Unknown variable " + line);
+				}
+				v.setRanks(parseDomain(s, 2));
 			} else if (s[0].equals("bool")) {
 				// TODO
 				final String name = s[1];
@@ -258,44 +359,53 @@ public class SugarMain {
 			}
 			v.setDigits(digits);
 		}
+		return csp;
+	}
 
+	private void decode(CSP csp, String outFileName)
+	throws SugarException, IOException {
+		Logger.fine("Decoding " + outFileName);
 		final Decoder decoder = ef.createDecoder(csp);
 		if (decoder.decode(outFileName)) {
-			if (csp.getObjectiveVariable() == null) {
-				Logger.println("s SATISFIABLE");
-			} else {
-				final IntegerVariable obj = csp.getObjectiveVariable();
-				final String name = obj.getName();
-				final long value = obj.getValue();
-				Logger.println("c OBJECTIVE " + name + " " + value);
-				for (IntegerVariable digit : obj.getDigits()) {
-					Logger.println("c DIGITS: "+digit.getName() + " " + digit.getValue());
-				}
-				Logger.println("o " + value);
+			output(csp);
+		} else {
+			Logger.println("s UNSATISFIABLE");
+		}
+	}
+
+	private void output(CSP csp) {
+		if (csp.getObjectiveVariable() == null) {
+			Logger.println("s SATISFIABLE");
+		} else {
+			final IntegerVariable obj = csp.getObjectiveVariable();
+			final String name = obj.getName();
+			final long value = obj.getValue();
+			Logger.println("c OBJECTIVE " + name + " " + value);
+			for (IntegerVariable digit : obj.getDigits()) {
+				Logger.println("c DIGITS: "+digit.getName() + " " + digit.getValue());
 			}
-			if (competition) {
-				Logger.print("v");
-				for (IntegerVariable v : csp.getIntegerVariables()) {
-					if (! v.isAux() && ! v.getName().startsWith("_")) {
-						Logger.print(" " + v.getValue());
-					}
+			Logger.println("o " + value);
+		}
+		if (competition) {
+			Logger.print("v");
+			for (IntegerVariable v : csp.getIntegerVariables()) {
+				if (! v.isAux() && ! v.getName().startsWith("_")) {
+					Logger.print(" " + v.getValue());
 				}
-				Logger.println("");
-			} else {
-				for (IntegerVariable v : csp.getIntegerVariables()) {
-					if (! v.isAux() && ! v.getName().startsWith("_")) {
-						Logger.println("a " + v.getName() + "\t" + v.getValue());
-					}
+			}
+			Logger.println("");
+		} else {
+			for (IntegerVariable v : csp.getIntegerVariables()) {
+				if (! v.isAux() && ! v.getName().startsWith("_")) {
+					Logger.println("a " + v.getName() + "\t" + v.getValue());
 				}
-				for (BooleanVariable v : csp.getBooleanVariables()) {
-					if (! v.isAux() && ! v.getName().startsWith("_")) {
-						Logger.println("a " + v.getName() + "\t" + v.getValue());
-					}
+			}
+			for (BooleanVariable v : csp.getBooleanVariables()) {
+				if (! v.isAux() && ! v.getName().startsWith("_")) {
+					Logger.println("a " + v.getName() + "\t" + v.getValue());
 				}
-				Logger.println("a");
 			}
-		} else {
-			Logger.println("s UNSATISFIABLE");
+			Logger.println("a");
 		}
 	}
 
@@ -324,10 +434,18 @@ public class SugarMain {
 						if (opt.matches("(no_)?pigeon")) {
 							Converter.OPT_PIGEON = ! opt.startsWith("no_");
 						} else if (opt.matches("(no_)?compact")) {
-							//Encoder.OPT_COMPACT = ! opt.startsWith("no_");
+							Encoder.OPT_COMPACT = ! opt.startsWith("no_");
+						} else if (opt.matches("(no_)?bdd")) {
+							Encoder.OPT_BDD = ! opt.startsWith("no_");
+						} else if (opt.matches("(no_)?rank")) {
+							Encoder.OPT_RANK = ! opt.startsWith("no_");
 						} else if (opt.matches("(no_)?estimate_satsize")) {
 							Encoder.ESTIMATE_SATSIZE = ! opt.startsWith("no_");
 							//Encoder.OPT_COMPACT = ! opt.startsWith("no_");
+						} else if (opt.matches("(no_)?intern")) {
+							Expression.intern = ! opt.startsWith("no_");
+						} else if (opt.matches("(no_)?difference")) {
+							CSP.OPT_DIFFERENCE = ! opt.startsWith("no_");
 						} else if (opt.matches("(no_)?new_variable")) {
 							Converter.NEW_VARIABLE = ! opt.startsWith("no_");
 						} else if (opt.matches("equiv=(\\d+)")) {
@@ -339,6 +457,21 @@ public class SugarMain {
 						} else if (opt.matches("split=(\\d+)")) {
 							final int n = "split=".length();
 							Encoder.SPLITS = Integer.parseInt(opt.substring(n));
+						} else if (opt.matches("buffer=(\\d+)")) {
+							final int n = "buffer=".length();
+							CNFWriter.SAT_BUFFER_SIZE = Integer.parseInt(opt.substring(n)) * 1024 * 1024;
+						} else if (opt.matches("buffers=(\\d+)")) {
+							final int n = "buffers=".length();
+							CNFWriter.SAT_BUFFERS = Integer.parseInt(opt.substring(n));
+						} else if (opt.matches("threads=(\\d+)")) {
+							final int n = "threads=".length();
+							Encoder.THREADS = Integer.parseInt(opt.substring(n));
+						} else if (opt.matches("shave=(\\d+)")) {
+							final int n = "shave=".length();
+							sugarMain.shave = Integer.parseInt(opt.substring(n));
+						} else if (opt.matches("propagation=(\\d+)")) {
+							final int n = "propagation=".length();
+							CSP.MAX_PROPAGATIONS = Long.parseLong(opt.substring(n));
 						} else if (opt.matches("domain=(\\d+)")) {
 							final int n = "domain=".length();
 							IntegerDomain.MAX_SET_SIZE = Integer.parseInt(opt.substring(n));
@@ -369,6 +502,33 @@ public class SugarMain {
 					} else {
 						throw new SugarException("Not supported encoding: "+ enc);
 					}
+				} else if (args[i].equals("-format") && i+1 < args.length) {
+					final String format = args[i+1];
+					if (format.equals("dimacs")) {
+						CNFWriter.FORMAT = CNFWriter.Format.DIMACS;
+					} else if (format.equals("gzip")) {
+						CNFWriter.FORMAT = CNFWriter.Format.GZIP;
+					} else if (format.equals("binary")) {
+						CNFWriter.FORMAT = CNFWriter.Format.BINARY;
+					} else {
+						throw new SugarException("Not supported CNF format: " + format);
+					}
+					i++;
+				} else if (args[i].equals("-solver") && i+1 < args.length) {
+					sugarMain.solver = new SatSolver(args[i+1]);
+					i++;
+				} else if (args[i].equals("-search") && i+1 < args.length) {
+					final String search = args[i+1];
+					if (search.equals("binary")) {
+						sugarMain.strategy = Optimizer.Strategy.BINARY;
+					} else if (search.equals("sat-unsat")) {
+						sugarMain.strategy = Optimizer.Strategy.SAT_UNSAT;
+					} else if (search.equals("unsat-sat")) {
+						sugarMain.strategy = Optimizer.Strategy.UNSAT_SAT;
+					} else {
+						throw new SugarException("Not supported search strategy: " + search);
+					}
+					i++;
 				} else if (args[i].equals("-v") || args[i].equals("-verbose")) {
 					Logger.verboseLevel++;
 				} else if (args[i].startsWith("-")) {
@@ -394,6 +554,11 @@ public class SugarMain {
 				final String satFileName = args[i+2];
 				final String mapFileName = args[i+3];
 				sugarMain.encode(cspFileName, satFileName, mapFileName);
+			} else if (option.equals("-solve") && n == 4) {
+				final String cspFileName = args[i+1];
+				final String satFileName = args[i+2];
+				final String outFileName = args[i+3];
+				sugarMain.solve(cspFileName, satFileName, outFileName);
 			} else if (option.equals("-decode") && n == 3) {
 				final String outFileName = args[i+1];
 				final String mapFileName = args[i+2];
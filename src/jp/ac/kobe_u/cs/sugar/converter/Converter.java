@@ -4,12 +4,11 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.Map.Entry;
 
 import jp.ac.kobe_u.cs.sugar.Logger;
 import jp.ac.kobe_u.cs.sugar.SugarException;
+import jp.ac.kobe_u.cs.sugar.SugarMain;
 import jp.ac.kobe_u.cs.sugar.csp.*;
 import jp.ac.kobe_u.cs.sugar.csp.CSP.Objective;
 import jp.ac.kobe_u.cs.sugar.expression.*;
@@ -78,18 +77,16 @@ public class Converter {
 					throw new SugarException("Bad definition " + seq);
 				}
 			} else {
-				SortedSet<Long> d = new TreeSet<Long>(); 
+				long[] lbs = new long[x.length()];
+				long[] ubs = new long[x.length()];
 				for (int i = 0; i < x.length(); i++) {
 					if (x.get(i).isInteger()) {
-						d.add(x.get(i).integerValue());
+						lbs[i] = ubs[i] = x.get(i).integerValue();
 					} else if (x.get(i).isSequence()) {
 						Sequence seq1 = (Sequence)x.get(i);
 						if (seq1.matches("II")) {
-							long value0 = ((Sequence)x.get(i)).get(0).integerValue();
-							long value1 = ((Sequence)x.get(i)).get(1).integerValue();
-							for (long value = value0; value <= value1; value++) {
-								d.add(value);
-							}
+							lbs[i] = ((Sequence)x.get(i)).get(0).integerValue();
+							ubs[i] = ((Sequence)x.get(i)).get(1).integerValue();
 						} else {
 							throw new SugarException("Bad definition " + seq);
 						}
@@ -97,7 +94,7 @@ public class Converter {
 						throw new SugarException("Bad definition " + seq);
 					}
 				}
-				domain = new IntegerDomain(d);
+				domain = new IntegerDomain(lbs, ubs);
 			}
 		} else if (seq.matches("WWII")) {
 			name = seq.get(1).stringValue();
@@ -183,7 +180,9 @@ public class Converter {
 	throws SugarException {
 		IntegerVariable v = new IntegerVariable(d);
 		csp.add(v);
-		v.setComment(v.getName() + " : " + x.toString());
+		if (SugarMain.debug >= 1) {
+			v.setComment(v.getName() + " : " + x.toString());
+		}
 		return v;
 	}
 
@@ -208,10 +207,10 @@ public class Converter {
 	private LinearSum convertLinearSum(LinearExpression x)
 		throws SugarException {
 		LinearSum ls = new LinearSum(x.getB());
-		for (Atom atom: x.getVariables()) {
-			IntegerVariable v = intMap.get(atom.stringValue());
+		for (int i = 0; i < x.size(); i++) {
+			IntegerVariable v = intMap.get(x.getVariable(i).stringValue());
 			if (v == null) throw new SugarException("!!!");
-			long a = x.getA(atom);
+			long a = x.getA(i);
 			if (a != 0) {
 				ls.setA(a, v);
 			}
@@ -293,6 +292,17 @@ public class Converter {
 		}
 	}
 
+	/**
+	 * Converts one decomposed expression into the CSP.
+	 * @param x the expression
+	 */
+	public void convert(Expression x) throws SugarException {
+		convertExpression(x);
+		if (INCREMENTAL_PROPAGATE) {
+			csp.propagateIncrementally();
+		}
+	}
+
 	public void convert(List<Expression> expressions) throws SugarException {
 		int n = expressions.size();
 		int percent = 10;
@@ -3,8 +3,6 @@ package jp.ac.kobe_u.cs.sugar.converter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.FileInputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.BufferedWriter;
@@ -15,12 +13,11 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.Map.Entry;
 
 import jp.ac.kobe_u.cs.sugar.Logger;
 import jp.ac.kobe_u.cs.sugar.SugarException;
+import jp.ac.kobe_u.cs.sugar.SugarMain;
 import jp.ac.kobe_u.cs.sugar.csp.*;
 import jp.ac.kobe_u.cs.sugar.csp.CSP.Objective;
 import jp.ac.kobe_u.cs.sugar.expression.*;
@@ -113,19 +110,17 @@ public class Decomposer {
 		} else if (seq.matches("WWS")) {
 			name = seq.get(1).stringValue();
 			domainExp = (Sequence)seq.get(2);
-			SortedSet<Long> d = new TreeSet<Long>();
 			Sequence x = (Sequence)seq.get(2);
+			long[] lbs = new long[x.length()];
+			long[] ubs = new long[x.length()];
 			for (int i = 0; i < x.length(); i++) {
 				if (x.get(i).isInteger()) {
-					d.add(x.get(i).integerValue());
+					lbs[i] = ubs[i] = x.get(i).integerValue();
 				} else if (x.get(i).isSequence()) {
 					Sequence seq1 = (Sequence)x.get(i);
 					if (seq1.matches("II")) {
-						long value0 = ((Sequence)x.get(i)).get(0).integerValue();
-						long value1 = ((Sequence)x.get(i)).get(1).integerValue();
-						for (long value = value0; value <= value1; value++) {
-							d.add(value);
-						}
+						lbs[i] = ((Sequence)x.get(i)).get(0).integerValue();
+						ubs[i] = ((Sequence)x.get(i)).get(1).integerValue();
 					} else {
 						throw new SugarException("Bad definition " + seq);
 					}
@@ -133,7 +128,7 @@ public class Decomposer {
 					throw new SugarException("Bad definition " + seq);
 				}
 			}
-			domain = new IntegerDomain(d);
+			domain = new IntegerDomain(lbs, ubs);
 		} else if (seq.matches("WWII")) {
 			name = seq.get(1).stringValue();
 			long lb = seq.get(2).integerValue();
@@ -247,7 +242,9 @@ public class Decomposer {
 		final Atom v = (Atom)Expression.create(name);
 		final Expression exp = Expression.create(Expression.INT_DEFINITION,
 																						 v, d.toExpression());
-		exp.setComment(name + " : " + x.toString());
+		if (SugarMain.debug >= 1) {
+			exp.setComment(name + " : " + x.toString());
+		}
 		decomposed.add(exp);
 		expDomainMap.put(name, d);
 		intMap.put(name, v);
@@ -318,7 +315,9 @@ public class Decomposer {
 			(x.ge(x1))
 			.and(x.ge(x1.neg()))
 			.and((x.le(x1)).or(x.le(x1.neg())));
-		eq.setComment(x.toString() + " == " + seq);
+		if (SugarMain.debug >= 1) {
+			eq.setComment(x.toString() + " == " + seq);
+		}
 		decomposeConstraint(eq);
 		addEquivalence(x, seq);
 		return new LinearExpression((Atom)x);
@@ -409,7 +408,9 @@ public class Decomposer {
 			Expression eq =
 				(x1.eq(px.add(r)))
 				.and((r.ge(Expression.ZERO)).and((x2.abs()).gt(r)));
-			eq.setComment(q.toString() + " == " + seq);
+			if (SugarMain.debug >= 1) {
+				eq.setComment(q.toString() + " == " + seq);
+			}
 			decomposeConstraint(eq);
 			addEquivalence(q, seq);
 			return new LinearExpression(q);
@@ -440,7 +441,9 @@ public class Decomposer {
 			Expression eq =
 				(x1.eq(px.add(r)))
 				.and((r.ge(Expression.ZERO)).and((x2.abs()).gt(r)));
-			eq.setComment(q.toString() + " == " + seq);
+			if (SugarMain.debug >= 1) {
+				eq.setComment(q.toString() + " == " + seq);
+			}
 			decomposeConstraint(eq);
 			addEquivalence(r, seq);
 			return new LinearExpression(r);
@@ -473,7 +476,9 @@ public class Decomposer {
 			(x.le(x1))
 			.and(x.le(x2))
 			.and((x.ge(x1)).or(x.ge(x2)));
-		eq.setComment(x.toString() + " == " + seq);
+		if (SugarMain.debug >= 1) {
+			eq.setComment(x.toString() + " == " + seq);
+		}
 		decomposeConstraint(eq);
 		addEquivalence(x, seq);
 		return new LinearExpression(x);
@@ -498,7 +503,9 @@ public class Decomposer {
 			(x.ge(x1))
 			.and(x.ge(x2))
 			.and((x.le(x1)).or(x.le(x2)));
-		eq.setComment(x.toString() + " == " + seq);
+		if (SugarMain.debug >= 1) {
+			eq.setComment(x.toString() + " == " + seq);
+		}
 		decomposeConstraint(eq);
 		addEquivalence(x, seq);
 		return new LinearExpression(x);
@@ -518,7 +525,9 @@ public class Decomposer {
 		Expression eq =
 			((x1.not()).or(x.eq(x2)))
 			.and(x1.or(x.eq(x3)));
-		eq.setComment(x.toString() + " == " + seq);
+		if (SugarMain.debug >= 1) {
+			eq.setComment(x.toString() + " == " + seq);
+		}
 		decomposeConstraint(eq);
 		addEquivalence(x, seq);
 		return new LinearExpression(x);
@@ -960,10 +969,10 @@ public class Decomposer {
 	private void decomposeConstraint(Expression x) throws SugarException {
 		List<Expression> exps = decomposeConstraint(x, false);
 		if (exps.size() > 0) {
-			if (x.getComment() == null) {
-				exps.get(0).setComment(x.toString());
-			} else {
+			if (x.getComment() != null) {
 				exps.get(0).setComment(x.getComment());
+			} else if (SugarMain.debug >= 1) {
+				exps.get(0).setComment(x.toString());
 			}
 		}
 		for (Expression e : exps) {
@@ -1004,6 +1013,23 @@ public class Decomposer {
 		return decomposed;
 	}
 
+	/**
+	 * Decomposes one expression.
+	 * Definitions are kept by the decomposer for the following expressions.
+	 * @param x the expression
+	 * @return the expressions decomposed from x
+	 */
+	public List<Expression> decompose(Expression x) throws SugarException {
+		final List<Expression> decomposed0 = decomposed;
+		decomposed = new ArrayList<Expression>();
+		try {
+			decomposeExpression(x);
+			return decomposed;
+		} finally {
+			decomposed = decomposed0;
+		}
+	}
+
 	public Map<String,IntegerDomain> getDomMap() {
 		return expDomainMap;
 	}
@@ -1012,8 +1038,7 @@ public class Decomposer {
 		throws SugarException, IOException {
 		Logger.fine("Parsing " + cspFileName);
 		InputStream in = new FileInputStream(cspFileName);
-		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-		Parser parser = new Parser(reader, false);
+		Parser parser = new Parser(in, false);
 		List<Expression> expressions = parser.parse();
 		Logger.info("parsed " + expressions.size() + " expressions");
 		Logger.status();
@@ -4,10 +4,10 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
 import jp.ac.kobe_u.cs.sugar.SugarException;
 import jp.ac.kobe_u.cs.sugar.csp.IntegerDomain;
+import jp.ac.kobe_u.cs.sugar.csp.LongIterator;
 import jp.ac.kobe_u.cs.sugar.expression.Expression;
 import jp.ac.kobe_u.cs.sugar.expression.LinearExpression;
 import jp.ac.kobe_u.cs.sugar.expression.Sequence;
@@ -182,15 +182,18 @@ public class Relation {
 		return bricks;
 	}
 
-	private List<Brick> combineBricks(int i, List<Long> values, Tuple tuple) throws SugarException {
+	/*
+	 * values[from..to-1] are the candidate values of the i-th argument.
+	 */
+	private List<Brick> combineBricks(int i, long[] values, int from, int to, Tuple tuple) throws SugarException {
 		List<Brick> bricks = null;
 		if (i == les.length - 1) {
 			bricks = new ArrayList<Brick>();
-			Iterator<Long> iter = les[i].getDomain(domMap).values();
+			LongIterator iter = les[i].getDomain(domMap).values();
 			long lb[] = null;
 			long ub[] = null;
 			while (iter.hasNext()) {
-				long value = iter.next();
+				long value = iter.nextLong();
 				tuple.values[i] = value;
 				if (conflicts(tuple)) {
 					long[] point = tuple.values.clone();
@@ -211,28 +214,25 @@ public class Relation {
 			}
 		} else {
 			if (values == null) {
-				values = new ArrayList<Long>();
-				Iterator<Long> iter = les[i].getDomain(domMap).values();
-				while (iter.hasNext()) {
-					long value = iter.next();
-					values.add(value);
-				}
+				values = les[i].getDomain(domMap).toArray();
+				from = 0;
+				to = values.length;
 			}
-			int size = values.size();
+			int size = to - from;
 			if (size == 1) {
-				tuple.values[i] = values.get(0);
+				tuple.values[i] = values[from];
 				for (int j = i + 1; j < tuple.values.length; j++) {
 					tuple.values[j] = UNDEF;
 				}
 				if (conflicts) {
 					if (tupleSet.contains(tuple)) {
-						bricks = combineBricks(i + 1, null, tuple);
+						bricks = combineBricks(i + 1, null, 0, 0, tuple);
 					} else {
 						bricks = new ArrayList<Brick>();
 					}
 				} else {
 					if (tupleSet.contains(tuple)) {
-						bricks = combineBricks(i + 1, null, tuple);
+						bricks = combineBricks(i + 1, null, 0, 0, tuple);
 					} else {
 						bricks = new ArrayList<Brick>();
 						long[] lb = tuple.values.clone();
@@ -246,10 +246,10 @@ public class Relation {
 				}
 			} else {
 				int m = size / 2;
-				List<Brick> bricks1 = combineBricks(i, values.subList(0, m), tuple);
-				List<Brick> bricks2 = combineBricks(i, values.subList(m, size), tuple);
-				long value1 = values.get(m - 1);
-				long value2 = values.get(m);
+				List<Brick> bricks1 = combineBricks(i, values, from, from + m, tuple);
+				List<Brick> bricks2 = combineBricks(i, values, from + m, to, tuple);
+				long value1 = values[from + m - 1];
+				long value2 = values[from + m];
 				bricks = combineBricks2(bricks1, bricks2, i, value1, value2);
 			}
 		}
@@ -263,7 +263,7 @@ public class Relation {
 
 	private List<Brick> getConflictBricks() throws SugarException {
 		Tuple tuple = new Tuple(new long[les.length]);
-		List<Brick> bricks = combineBricks(0, null, tuple);
+		List<Brick> bricks = combineBricks(0, null, 0, 0, tuple);
 		return bricks;
 	}
 
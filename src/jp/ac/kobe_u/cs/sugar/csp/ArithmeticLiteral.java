@@ -7,4 +7,33 @@ import jp.ac.kobe_u.cs.sugar.SugarException;
 public abstract class ArithmeticLiteral implements Literal {
 	public abstract Set<IntegerVariable> getVariables();
 	public abstract long[] getBound(IntegerVariable v) throws SugarException;
-}
\ No newline at end of file
+
+	/**
+	 * Bounds all variables of the literal as a unit clause.
+	 * @return the number of removed values
+	 */
+	public long propagate() throws SugarException {
+		final Set<IntegerVariable> vs = getVariables();
+		if (vs == null)
+			return 0;
+		long count = 0;
+		for (IntegerVariable v : vs) {
+			final long[] bound = getBound(v);
+			if (bound != null && bound[0] <= bound[1]) {
+				count += v.bound(bound[0], bound[1]);
+				if (v.getDomain().isEmpty())
+					break;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns true when the current bounds of the variables leave no
+	 * solution of the literal.
+	 * Unlike isUnsatisfiable(), no cached domain is used.
+	 */
+	public boolean isInconsistent() throws SugarException {
+		return false;
+	}
+}
@@ -11,7 +11,14 @@ public class BooleanVariable implements Comparable<BooleanVariable> {
 	private static final String AUX_PRE = "_$B";
 	private static String AUX_NAME_PREFIX = AUX_PRE;
 	private static long auxBooleanVariablesSize = 0;
+	private static int booleanVariablesSize = 0;
+	private final int id;
+	/*
+	 * The name of an aux variable is made when it is first requested.
+	 */
 	private String name;
+	private String auxPrefix;
+	private long auxIndex;
 	private boolean aux;
 	private String comment = null;
 	private long code;
@@ -31,23 +38,42 @@ public class BooleanVariable implements Comparable<BooleanVariable> {
 	 * @throws SugarException when the name is duplicated
 	 */
 	public BooleanVariable(String name) throws SugarException {
+		id = booleanVariablesSize++;
 		this.name = name;
 		aux = false;
 	}
 
 	public BooleanVariable() throws SugarException {
-		this(AUX_NAME_PREFIX + (++auxBooleanVariablesSize));
+		this(null);
+		auxPrefix = AUX_NAME_PREFIX;
+		auxIndex = ++auxBooleanVariablesSize;
 		aux = true;
 	}
 
+	/**
+	 * Returns the id of the boolean variable.
+	 * Ids are dense and given in the order of creation.
+	 * @return the id
+	 */
+	public int getId() {
+		return id;
+	}
+
 	/**
 	 * Returns the name of the boolean variable.
 	 * @return the name
 	 */
 	public String getName() {
+		if (name == null) {
+			name = auxPrefix + auxIndex;
+		}
 		return name;
 	}
 
+	boolean hasName() {
+		return name != null;
+	}
+
 	/**
 	 * Returns true when the boolean variable is aux.
 	 * @return true when the boolean variable is aux
@@ -113,7 +139,7 @@ public class BooleanVariable implements Comparable<BooleanVariable> {
 			return 0;
 		if (v == null)
 			return 1;
-		return name.compareTo(v.name);
+		return id < v.id ? -1 : id == v.id ? 0 : 1;
 	}
 
 	/* (non-Javadoc)
@@ -121,10 +147,7 @@ public class BooleanVariable implements Comparable<BooleanVariable> {
 	 */
 	@Override
 	public int hashCode() {
-		final int PRIME = 31;
-		int result = 1;
-		result = PRIME * result + ((name == null) ? 0 : name.hashCode());
-		return result;
+		return id;
 	}
 
 	/* (non-Javadoc)
@@ -139,12 +162,7 @@ public class BooleanVariable implements Comparable<BooleanVariable> {
 		if (getClass() != obj.getClass())
 			return false;
 		final BooleanVariable other = (BooleanVariable) obj;
-		if (name == null) {
-			if (other.name != null)
-				return false;
-		} else if (!name.equals(other.name))
-			return false;
-		return true;
+		return id == other.id;
 	}
 
 	/**
@@ -153,6 +171,6 @@ public class BooleanVariable implements Comparable<BooleanVariable> {
 	 */
 	@Override
 	public String toString() {
-		return "(bool " + name + ")";
+		return "(bool " + getName() + ")";
 	}
 }
@@ -2,9 +2,12 @@ package jp.ac.kobe_u.cs.sugar.csp;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import jp.ac.kobe_u.cs.sugar.Logger;
 import jp.ac.kobe_u.cs.sugar.SugarException;
@@ -16,6 +19,14 @@ import jp.ac.kobe_u.cs.sugar.SugarException;
  * @author Naoyuki Tamura (tamura@kobe-u.ac.jp)
  */
 public class CSP {
+	/**
+	 * Effort budget of propagation, counted in clause propagations.
+	 * The remaining queue is dropped when it is exhausted.
+	 */
+	public static long MAX_PROPAGATIONS = Long.MAX_VALUE;
+
+	public static boolean OPT_DIFFERENCE = true;
+
 	private int[] bases;
 
 	private List<IntegerVariable> integerVariables;
@@ -32,6 +43,26 @@ public class CSP {
 
 	private Objective objective = Objective.NONE;
 
+	/*
+	 * Clauses containing each integer variable, indexed by the variable id.
+	 * It is built by the first propagation and dropped after the final one.
+	 */
+	private ArrayList<List<Clause>> occurrences = null;
+
+	private ArrayDeque<Clause> queue = null;
+
+	private int removedValues = 0;
+
+	private int removedLiterals = 0;
+
+	private long propagations = 0;
+
+	/*
+	 * Original domains of the variables changed by the current probe.
+	 * It is null outside of probes.
+	 */
+	private HashMap<IntegerVariable,IntegerDomain> trail = null;
+
 	/**
 	 * Objective types.
 	 */
@@ -112,12 +143,20 @@ public class CSP {
 		return integerVariableMap.get(name);
 	}
 
+	/**
+	 * Adds an integer variable.
+	 * Aux variables whose names are not created yet are not
+	 * registered to the name table.
+	 * @param v the integer variable
+	 */
 	public void add(IntegerVariable v) throws SugarException {
-		String name = v.getName();
-		if (integerVariableMap.containsKey(name)) {
-			throw new SugarException("Duplicated integer variable " + name);
+		if (v.hasName()) {
+			String name = v.getName();
+			if (integerVariableMap.containsKey(name)) {
+				throw new SugarException("Duplicated integer variable " + name);
+			}
+			integerVariableMap.put(name, v);
 		}
-		integerVariableMap.put(v.getName(), v);
 		integerVariables.add(v);
 	}
 
@@ -130,11 +169,13 @@ public class CSP {
 	}
 
 	public void add(BooleanVariable v) throws SugarException {
-		String name = v.getName();
-		if (booleanVariableMap.containsKey(name)) {
-			throw new SugarException("Duplicated boolean variable " + name);
+		if (v.hasName()) {
+			String name = v.getName();
+			if (booleanVariableMap.containsKey(name)) {
+				throw new SugarException("Duplicated boolean variable " + name);
+			}
+			booleanVariableMap.put(name, v);
 		}
-		booleanVariableMap.put(v.getName(), v);
 		booleanVariables.add(v);
 	}
 
@@ -157,14 +198,22 @@ public class CSP {
 
 	public void setClauses(List<Clause> cls) {
 		clauses = cls;
+		occurrences = null;
+		queue = null;
 	}
 
 	/**
 	 * Adds a clause.
+	 * While propagation is in progress, the clause is also indexed and
+	 * queued for the next call of propagate().
 	 * @param clause the clause to be added
 	 */
 	public void add(Clause clause) {
 		clauses.add(clause);
+		if (occurrences != null) {
+			index(clause);
+			enqueue(clause);
+		}
 	}
 
 	public boolean isUnsatisfiable() throws SugarException {
@@ -183,44 +232,258 @@ public class CSP {
 		return false;
 	}
 
-	public int propagate() throws SugarException {
-		int removedValues = 0;
-		int removedLiterals = 0;
-		while (true) {
-			List<Clause> modifiedClauses = new ArrayList<Clause>();
+	private void index(Clause clause) {
+		for (ArithmeticLiteral lit : clause.getArithmeticLiterals()) {
+			Set<IntegerVariable> vs = lit.getVariables();
+			if (vs == null)
+				continue;
+			for (IntegerVariable v : vs) {
+				int id = v.getId();
+				while (occurrences.size() <= id) {
+					occurrences.add(null);
+				}
+				List<Clause> cs = occurrences.get(id);
+				if (cs == null) {
+					cs = new ArrayList<Clause>(2);
+					occurrences.set(id, cs);
+				}
+				if (cs.isEmpty() || cs.get(cs.size() - 1) != clause) {
+					cs.add(clause);
+				}
+			}
+		}
+	}
+
+	private void enqueue(Clause clause) {
+		if (! clause.queued && ! clause.getArithmeticLiterals().isEmpty()) {
+			clause.queued = true;
+			queue.add(clause);
+		}
+	}
+
+	private void wake(IntegerVariable v) {
+		v.setModified(false);
+		int id = v.getId();
+		if (id < occurrences.size()) {
+			List<Clause> cs = occurrences.get(id);
+			if (cs != null) {
+				for (Clause clause : cs) {
+					enqueue(clause);
+				}
+			}
+		}
+	}
+
+	private void startPropagation() {
+		if (occurrences == null) {
+			occurrences = new ArrayList<List<Clause>>(integerVariables.size());
+			queue = new ArrayDeque<Clause>();
 			for (Clause clause : clauses) {
-				if (clause.isModified()) {
-					modifiedClauses.add(clause);
+				index(clause);
+				enqueue(clause);
+			}
+		}
+	}
+
+	/*
+	 * Returns false when a probe finds a contradiction.
+	 * Clauses are not changed during probes.
+	 */
+	private boolean propagateQueue() throws SugarException {
+		while (! queue.isEmpty()) {
+			if (propagations >= MAX_PROPAGATIONS) {
+				clearQueue();
+				break;
+			}
+			propagations++;
+			Clause clause = queue.poll();
+			clause.queued = false;
+			if (trail == null) {
+				removedValues += clause.propagate();
+				removedLiterals += clause.removeFalsefood();
+			} else {
+				for (IntegerVariable v : clause.getCommonVariables()) {
+					if (! trail.containsKey(v)) {
+						trail.put(v, v.getDomain());
+					}
+				}
+				clause.propagate();
+				if (clause.isInconsistent()) {
+					clearQueue();
+					return false;
 				}
 			}
+			for (IntegerVariable v : clause.getCommonVariables()) {
+				if (v.isModified()) {
+					wake(v);
+				}
+			}
+		}
+		return true;
+	}
+
+	private void clearQueue() {
+		for (Clause clause : queue) {
+			clause.queued = false;
+		}
+		queue.clear();
+	}
+
+	/*
+	 * Tentatively bounds v to [lb, ub] and propagates it.
+	 * All domains are restored afterwards.
+	 */
+	private boolean probe(IntegerVariable v, long lb, long ub)
+	throws SugarException {
+		trail = new HashMap<IntegerVariable,IntegerDomain>();
+		trail.put(v, v.getDomain());
+		v.bound(lb, ub);
+		boolean consistent = ! v.getDomain().isEmpty();
+		if (consistent) {
+			wake(v);
+			consistent = propagateQueue();
+		}
+		for (Map.Entry<IntegerVariable,IntegerDomain> e : trail.entrySet()) {
+			e.getKey().setDomain(e.getValue());
+			e.getKey().setModified(false);
+		}
+		trail = null;
+		return consistent;
+	}
+
+	/*
+	 * Removes values from the lower (or upper) end of the domain of v
+	 * while probing them leads to a contradiction.
+	 * The width of the probed range doubles after each success.
+	 */
+	private long shave(IntegerVariable v, boolean lower, long deadline)
+	throws SugarException {
+		long count = 0;
+		long width = 1;
+		while (System.currentTimeMillis() < deadline) {
+			IntegerDomain d = v.getDomain();
+			if (d.size() <= 1)
+				break;
+			long lb = d.getLowerBound();
+			long ub = d.getUpperBound();
+			width = Math.min(width, ub - lb);
+			boolean consistent = lower ?
+				probe(v, lb, lb + width - 1) : probe(v, ub - width + 1, ub);
+			if (consistent) {
+				if (width == 1)
+					break;
+				width /= 2;
+			} else {
+				if (lower) {
+					count += v.bound(lb + width, ub);
+				} else {
+					count += v.bound(lb, ub - width);
+				}
+				wake(v);
+				propagateQueue();
+				if (v.getDomain().isEmpty())
+					break;
+				width *= 2;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Shaves the bounds of the integer variables by singleton probing.
+	 * A range at either end of a domain is removed when bounding the
+	 * variable to it and propagating leads to a contradiction.
+	 * Rounds over all variables are repeated until nothing is shaved
+	 * or the time limit is reached.
+	 * @param timeout the time limit in milliseconds
+	 * @return the number of removed values, literals, and clauses
+	 */
+	public int shave(long timeout) throws SugarException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		startPropagation();
+		propagateQueue();
+		long shaved = 0;
+		int rounds = 0;
+		boolean changed = true;
+		while (changed && System.currentTimeMillis() < deadline) {
+			changed = false;
+			rounds++;
 			for (IntegerVariable v : integerVariables) {
-				v.setModified(false);
+				if (System.currentTimeMillis() >= deadline)
+					break;
+				long count = shave(v, true, deadline) + shave(v, false, deadline);
+				if (count > 0) {
+					shaved += count;
+					changed = true;
+				}
+				if (v.getDomain().isEmpty()) {
+					changed = false;
+					break;
+				}
 			}
-			int values = 0;
-			int literals = 0;
-			for (Clause clause : modifiedClauses) {
-				values += clause.propagate();
-				literals += clause.removeFalsefood();
+		}
+		Logger.fine(shaved + " values are shaved in " + rounds + " rounds");
+		return propagate();
+	}
+
+	/**
+	 * Tightens the bounds by the difference constraints "x - y &lt;= c"
+	 * of unit clauses with longest path computation.
+	 * @return the number of removed values
+	 * @see DifferenceGraph
+	 */
+	public long propagateDifferences() throws SugarException {
+		return new DifferenceGraph(this).propagate();
+	}
+
+	/**
+	 * Propagates the clauses added since the last propagation.
+	 * Valid clauses are kept until the final propagate() call.
+	 */
+	public void propagateIncrementally() throws SugarException {
+		startPropagation();
+		propagateQueue();
+	}
+
+	/**
+	 * Propagates the domain changes until the fixpoint, and removes
+	 * valid clauses.
+	 * Only the clauses containing a modified variable are woken up.
+	 * @return the number of removed values, literals, and clauses
+	 */
+	public int propagate() throws SugarException {
+		startPropagation();
+		for (IntegerVariable v : integerVariables) {
+			if (v.isModified()) {
+				wake(v);
 			}
-			if (values == 0 && literals == 0)
-				break;
-			removedValues += values;
-			removedLiterals += literals;
 		}
+		propagateQueue();
 		int removedClauses = 0;
-		int i = 0;
-		while (i < clauses.size()) {
-			if (clauses.get(i).isValid()) {
-				clauses.remove(i);
+		int n = 0;
+		for (int i = 0; i < clauses.size(); i++) {
+			Clause clause = clauses.get(i);
+			if (clause.isValid()) {
 				removedClauses++;
 			} else {
-				i++;
+				clauses.set(n++, clause);
 			}
 		}
+		clauses.subList(n, clauses.size()).clear();
+		occurrences = null;
+		queue = null;
+		if (propagations >= MAX_PROPAGATIONS) {
+			Logger.fine("Propagation is stopped by the budget of "
+					+ MAX_PROPAGATIONS + " clauses");
+		}
 		Logger.fine(removedValues + " values, "
 				+ removedLiterals + " unsatisfiable literals, and "
 				+ removedClauses + " valid clauses are removed");
-		return removedValues + removedLiterals + removedClauses;
+		int count = removedValues + removedLiterals + removedClauses;
+		removedValues = 0;
+		removedLiterals = 0;
+		propagations = 0;
+		return count;
 	}
 
 	public void output(PrintStream out, String pre) {
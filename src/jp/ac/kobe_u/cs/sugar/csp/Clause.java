@@ -17,6 +17,8 @@ public class Clause {
 	private List<ArithmeticLiteral> arithLiterals;
 	private Set<IntegerVariable> commonVariables = null;
 	private String comment = null;
+	/* Set while the clause waits in the propagation queue of the CSP. */
+	boolean queued = false;
 
 	/**
 	 * Constructs a new clause with give literals.
@@ -100,7 +102,11 @@ public class Clause {
 	}
 
 	public Set<IntegerVariable> getCommonVariables() {
-		if (commonVariables == null && size() > 0) {
+		if (commonVariables == null && size() == 0) {
+			// an empty clause found by propagation
+			return new TreeSet<IntegerVariable>();
+		}
+		if (commonVariables == null) {
 			if (!boolLiterals.isEmpty()) {
 				commonVariables = null;
 			} else {
@@ -157,9 +163,25 @@ public class Clause {
 		return true;
 	}
 
+	/**
+	 * Returns true when every literal is inconsistent with the current
+	 * bounds of the variables.
+	 */
+	boolean isInconsistent() throws SugarException {
+		if (! boolLiterals.isEmpty())
+			return false;
+		for (ArithmeticLiteral lit : arithLiterals) {
+			if (! lit.isInconsistent())
+				return false;
+		}
+		return true;
+	}
+
 	public int propagate() throws SugarException {
 		if (size() == 0)
 			return 0;
+		if (boolLiterals.isEmpty() && arithLiterals.size() == 1)
+			return (int)arithLiterals.get(0).propagate();
 		int count = 0;
 		for (IntegerVariable v : getCommonVariables()) {
 			assert boolLiterals.isEmpty();
@@ -0,0 +1,189 @@
+package jp.ac.kobe_u.cs.sugar.csp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jp.ac.kobe_u.cs.sugar.Logger;
+import jp.ac.kobe_u.cs.sugar.SugarException;
+
+/**
+ * This class tightens the bounds of integer variables by the
+ * difference constraints "x - y &lt;= c" found in unit clauses.
+ * Lower bounds are the longest paths in the precedence graph and
+ * upper bounds are those of the reversed graph.
+ * @see CSP
+ */
+class DifferenceGraph {
+	private CSP csp;
+	private List<IntegerVariable> nodes;
+	private int[] index;
+	private int m = 0;
+	private int[] xs = new int[16];
+	private int[] ys = new int[16];
+	private long[] cs = new long[16];
+
+	DifferenceGraph(CSP csp) {
+		this.csp = csp;
+	}
+
+	private int node(IntegerVariable v) {
+		int id = v.getId();
+		if (index[id] < 0) {
+			index[id] = nodes.size();
+			nodes.add(v);
+		}
+		return index[id];
+	}
+
+	private void addEdge(IntegerVariable x, IntegerVariable y, long c) {
+		if (m == xs.length) {
+			xs = Arrays.copyOf(xs, 2*m);
+			ys = Arrays.copyOf(ys, 2*m);
+			cs = Arrays.copyOf(cs, 2*m);
+		}
+		xs[m] = node(x);
+		ys[m] = node(y);
+		cs[m] = c;
+		m++;
+	}
+
+	/*
+	 * Adds x - y <= c for a literal a*x - a*y + b (op) 0 with a = 1.
+	 */
+	private void add(Clause clause) {
+		if (! clause.getBooleanLiterals().isEmpty()
+				|| clause.getArithmeticLiterals().size() != 1)
+			return;
+		ArithmeticLiteral lit = clause.getArithmeticLiterals().get(0);
+		if (! (lit instanceof LinearLiteral))
+			return;
+		LinearLiteral ll = (LinearLiteral)lit;
+		LinearSum ls = ll.getLinearExpression();
+		if (ls.size() != 2 || ls.getA(0) + ls.getA(1) != 0
+				|| Math.abs(ls.getA(0)) != 1)
+			return;
+		IntegerVariable x = ls.getA(0) > 0 ? ls.getVariable(0) : ls.getVariable(1);
+		IntegerVariable y = ls.getA(0) > 0 ? ls.getVariable(1) : ls.getVariable(0);
+		long c = -ls.getB();
+		switch (ll.getOperator()) {
+		case LE:
+			addEdge(x, y, c);
+			break;
+		case EQ:
+			addEdge(x, y, c);
+			addEdge(y, x, -c);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/*
+	 * Longest paths from the initial values by SPFA, where an edge
+	 * (u, w, c) requires ds[w] >= ds[u] - c.
+	 * Returns the node whose value exceeds its limit or is updated
+	 * more than n times (a positive cycle), or -1.
+	 */
+	private int longestPaths(int[] us, int[] ws, long[] ds, long[] limits) {
+		final int n = nodes.size();
+		final int[] start = new int[n + 1];
+		for (int e = 0; e < m; e++) {
+			start[us[e] + 1]++;
+		}
+		for (int i = 0; i < n; i++) {
+			start[i + 1] += start[i];
+		}
+		final int[] pos = Arrays.copyOf(start, n);
+		final int[] edges = new int[m];
+		for (int e = 0; e < m; e++) {
+			edges[pos[us[e]]++] = e;
+		}
+		final int[] queue = new int[n];
+		final boolean[] queued = new boolean[n];
+		final int[] updates = new int[n];
+		int head = 0;
+		int size = n;
+		for (int i = 0; i < n; i++) {
+			queue[i] = i;
+			queued[i] = true;
+		}
+		while (size > 0) {
+			final int u = queue[head];
+			head = (head + 1) % n;
+			size--;
+			queued[u] = false;
+			for (int k = start[u]; k < start[u + 1]; k++) {
+				final int e = edges[k];
+				final int w = ws[e];
+				final long d = ds[u] - cs[e];
+				if (d > ds[w]) {
+					ds[w] = d;
+					if (d > limits[w] || ++updates[w] > n)
+						return w;
+					if (! queued[w]) {
+						queued[w] = true;
+						queue[(head + size) % n] = w;
+						size++;
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Bounds the variables by the difference constraints.
+	 * An inconsistent graph empties the domain of a variable on it.
+	 * @return the number of removed values
+	 */
+	long propagate() throws SugarException {
+		int maxId = -1;
+		for (IntegerVariable v : csp.getIntegerVariables()) {
+			maxId = Math.max(maxId, v.getId());
+		}
+		index = new int[maxId + 1];
+		Arrays.fill(index, -1);
+		nodes = new ArrayList<IntegerVariable>();
+		for (Clause clause : csp.getClauses()) {
+			add(clause);
+		}
+		final int n = nodes.size();
+		if (m == 0) {
+			return 0;
+		}
+		final long[] lbs = new long[n];
+		final long[] nubs = new long[n];
+		for (int i = 0; i < n; i++) {
+			IntegerDomain d = nodes.get(i).getDomain();
+			if (d.isEmpty())
+				return 0;
+			lbs[i] = d.getLowerBound();
+			nubs[i] = - d.getUpperBound();
+		}
+		final long[] limits = new long[n];
+		for (int i = 0; i < n; i++) {
+			limits[i] = - nubs[i];
+		}
+		int w = longestPaths(xs, ys, lbs, limits);
+		if (w < 0) {
+			for (int i = 0; i < n; i++) {
+				limits[i] = - lbs[i];
+			}
+			w = longestPaths(ys, xs, nubs, limits);
+		}
+		if (w >= 0) {
+			Logger.fine("Inconsistent difference constraints on "
+					+ nodes.get(w).getName());
+			final IntegerVariable v = nodes.get(w);
+			final long ub = v.getDomain().getUpperBound();
+			return v.bound(ub + 1, ub);
+		}
+		long count = 0;
+		for (int i = 0; i < n; i++) {
+			count += nodes.get(i).bound(lbs[i], - nubs[i]);
+		}
+		Logger.fine(m + " difference constraints remove " + count + " values");
+		return count;
+	}
+}
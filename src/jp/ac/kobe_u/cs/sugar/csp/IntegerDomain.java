@@ -1,8 +1,10 @@
 package jp.ac.kobe_u.cs.sugar.csp;
 
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -11,163 +13,341 @@ import jp.ac.kobe_u.cs.sugar.expression.Expression;
 
 /**
  * This class implements an integer domain class.
+ * A domain is an immutable sorted array of disjoint and non-adjacent
+ * intervals [lbs[i], ubs[i]], so sparse domains of any size are kept exactly.
+ * Operations enumerating values (mul, div, mod, pow) fall back to
+ * the bounding interval when the domain has more than MAX_SET_SIZE values.
  * @see CSP
  * @author Tomoya (tanjo@nii.ac.jp)
  */
 public class IntegerDomain implements Iterable<Long> {
 	public static long MAX_SET_SIZE = 128;
-	private long lb;
-	private long ub;
-	private SortedSet<Long> domain;
-	private long size_ = -1;
-
-	private static IntegerDomain create(SortedSet<Long> domain) throws SugarException {
-		long lb = domain.first();
-		long ub = domain.last();
-		if (domain.size() <= MAX_SET_SIZE) {
-			boolean sparse = false;
-			for (long value = lb; value <= ub; value++) {
-				if (! domain.contains(value)) {
-					sparse = true;
-					break;
-				}
-			}
-			if (! sparse) {
-				domain = null;
-			}
-		} else {
-			domain = null;
-		}
-		if (domain == null) {
-			return new IntegerDomain(lb, ub);
-		}
-		return new IntegerDomain(domain);
+	private static final long[] EMPTY = new long[0];
+	private final long[] lbs;
+	private final long[] ubs;
+	private final long size;
+	/*
+	 * Number of values before each interval, or null for at most one
+	 * interval. It makes sizeLE and valueAt logarithmic.
+	 */
+	private final long[] counts;
+
+	private IntegerDomain(long[] lbs, long[] ubs, int n) {
+		if (lbs.length != n) {
+			lbs = Arrays.copyOf(lbs, n);
+			ubs = Arrays.copyOf(ubs, n);
+		}
+		this.lbs = lbs;
+		this.ubs = ubs;
+		counts = prefixCounts(lbs, ubs);
+		size = n == 0 ? 0 : (n == 1 ? ubs[0] - lbs[0] + 1 : counts[n-1] + ubs[n-1] - lbs[n-1] + 1);
+	}
+
+	private static long[] prefixCounts(long[] lbs, long[] ubs) {
+		final int n = lbs.length;
+		if (n <= 1)
+			return null;
+		final long[] counts = new long[n];
+		for (int i = 1; i < n; i++) {
+			counts[i] = counts[i-1] + ubs[i-1] - lbs[i-1] + 1;
+		}
+		return counts;
+	}
+
+	private IntegerDomain() {
+		this(EMPTY, EMPTY, 0);
 	}
 
 	public IntegerDomain(long lb, long ub) throws SugarException {
 		if (lb > ub) {
 			throw new SugarException("Illegal domain instantiation " + lb + " " + ub);
 		}
-		this.lb = lb;
-		this.ub = ub;
-		domain = null;
+		lbs = new long[] { lb };
+		ubs = new long[] { ub };
+		counts = null;
+		size = ub - lb + 1;
+	}
+
+	/**
+	 * Constructs the union of the given intervals [lbs[i], ubs[i]].
+	 * The intervals may overlap and need not be sorted, and empty
+	 * intervals (lbs[i] &gt; ubs[i]) are ignored.
+	 */
+	public IntegerDomain(long[] lbs, long[] ubs) {
+		this(union(lbs, ubs));
 	}
 
 	public IntegerDomain(SortedSet<Long> domain) {
-		lb = domain.first();
-		ub = domain.last();
-		this.domain = domain;
+		long[] lbs0 = new long[8];
+		long[] ubs0 = new long[8];
+		int n = 0;
+		for (long value : domain) {
+			if (n > 0 && ubs0[n-1] + 1 == value) {
+				ubs0[n-1] = value;
+			} else {
+				if (n == lbs0.length) {
+					lbs0 = Arrays.copyOf(lbs0, 2*n);
+					ubs0 = Arrays.copyOf(ubs0, 2*n);
+				}
+				lbs0[n] = ubs0[n] = value;
+				n++;
+			}
+		}
+		lbs = Arrays.copyOf(lbs0, n);
+		ubs = Arrays.copyOf(ubs0, n);
+		counts = prefixCounts(lbs, ubs);
+		size = n == 0 ? 0 : (n == 1 ? ubs[0] - lbs[0] + 1 : counts[n-1] + ubs[n-1] - lbs[n-1] + 1);
 	}
 
 	public IntegerDomain(IntegerDomain d) {
-		lb = d.lb;
-		ub = d.ub;
-		domain = null;
-		if (d.domain != null) {
-			domain = new TreeSet<Long>(d.domain);
+		lbs = d.lbs;
+		ubs = d.ubs;
+		counts = d.counts;
+		size = d.size;
+	}
+
+	/*
+	 * Copies the non-empty intervals and returns their union.
+	 */
+	private static IntegerDomain union(long[] lbs, long[] ubs) {
+		final long[] s = new long[lbs.length];
+		final long[] e = new long[ubs.length];
+		int n = 0;
+		for (int i = 0; i < lbs.length; i++) {
+			if (lbs[i] <= ubs[i]) {
+				s[n] = lbs[i];
+				e[n] = ubs[i];
+				n++;
+			}
 		}
+		return union(s, e, n);
+	}
+
+	/**
+	 * Sorts the starts and ends separately and sweeps them,
+	 * merging overlapping and adjacent intervals.
+	 * The arrays are modified.
+	 */
+	private static IntegerDomain union(long[] s, long[] e, int n) {
+		Arrays.sort(s, 0, n);
+		Arrays.sort(e, 0, n);
+		final long[] lbs0 = new long[n];
+		final long[] ubs0 = new long[n];
+		int m = 0;
+		int depth = 0;
+		int i = 0;
+		int j = 0;
+		while (j < n) {
+			if (i < n && (depth == 0 || s[i] <= e[j] || s[i] - 1 == e[j])) {
+				if (depth == 0) {
+					lbs0[m] = s[i];
+				}
+				depth++;
+				i++;
+			} else {
+				depth--;
+				if (depth == 0) {
+					ubs0[m++] = e[j];
+				}
+				j++;
+			}
+		}
+		return new IntegerDomain(lbs0, ubs0, m);
 	}
 
-	private IntegerDomain() {
-		domain = new TreeSet<Long>();
+	/**
+	 * Creates a domain of the first n values of the array.
+	 * A BitSet is used when the values are in a small range.
+	 */
+	private static IntegerDomain create(long[] values, int n) {
+		if (n == 0) {
+			return new IntegerDomain();
+		}
+		long min = values[0];
+		long max = values[0];
+		for (int i = 1; i < n; i++) {
+			min = Math.min(min, values[i]);
+			max = Math.max(max, values[i]);
+		}
+		final long range = max - min;
+		if (0 <= range && range <= 64L * n && range < Integer.MAX_VALUE) {
+			final BitSet bits = new BitSet((int)range + 1);
+			for (int i = 0; i < n; i++) {
+				bits.set((int)(values[i] - min));
+			}
+			final long[] lbs0 = new long[n];
+			final long[] ubs0 = new long[n];
+			int m = 0;
+			for (int k = bits.nextSetBit(0); k >= 0; k = bits.nextSetBit(k)) {
+				lbs0[m] = min + k;
+				k = bits.nextClearBit(k);
+				ubs0[m++] = min + k - 1;
+			}
+			return new IntegerDomain(lbs0, ubs0, m);
+		}
+		return union(values, Arrays.copyOf(values, n), n);
 	}
 
 	public long size() {
-		if (size_ != -1) {
-			return size_;
-		}
-		if (domain == null) {
-			size_ = lb <= ub ? ub - lb + 1 : 0;
-		} else if (ub-lb > Integer.MAX_VALUE) {
-			size_ = 0;
-			for(Long v: domain) {
-				size_++;
-			}
-		} else {
-			size_ = domain.size();
-		}
-		return size_;
+		return size;
+	}
+
+	/**
+	 * Returns the number of intervals of the domain.
+	 */
+	public int intervals() {
+		return lbs.length;
 	}
 
 	public boolean isContiguous() {
-		return domain == null;
+		return lbs.length <= 1;
 	}
 
 	public boolean isEmpty() {
-		return size() == 0;
+		return lbs.length == 0;
 	}
 
 	public long getLowerBound() {
-		if (domain == null) {
-			return lb;
-		} else {
-			return domain.first();
+		if (lbs.length == 0) {
+			throw new NoSuchElementException();
 		}
+		return lbs[0];
 	}
 
 	public long getUpperBound() {
-		if (domain == null) {
-			return ub;
-		} else {
-			return domain.last();
+		if (ubs.length == 0) {
+			throw new NoSuchElementException();
+		}
+		return ubs[ubs.length - 1];
+	}
+
+	/**
+	 * Returns the index of the last interval whose lower bound is
+	 * at most value, or -1.
+	 */
+	private int find(long value) {
+		int lo = 0;
+		int hi = lbs.length - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (lbs[mid] <= value) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
 		}
+		return hi;
 	}
 
 	public boolean contains(long value) {
-		if (domain == null) {
-			return lb <= value && value <= ub;
-		} else {
-			return domain.contains(value);
+		final int i = find(value);
+		return i >= 0 && value <= ubs[i];
+	}
+
+	/**
+	 * Returns the number of values less than or equal to value.
+	 */
+	public long sizeLE(long value) {
+		final int k = find(value);
+		if (k < 0)
+			return 0;
+		final long s = counts == null ? 0 : counts[k];
+		return s + Math.min(value, ubs[k]) - lbs[k] + 1;
+	}
+
+	/**
+	 * Returns the k-th smallest value of the domain counting from 0,
+	 * that is the inverse of sizeLE(value) - 1.
+	 */
+	public long valueAt(long k) {
+		if (k < 0 || k >= size) {
+			throw new NoSuchElementException();
+		}
+		if (counts == null)
+			return lbs[0] + k;
+		int lo = 0;
+		int hi = counts.length - 1;
+		while (lo < hi) {
+			final int mid = (lo + hi + 1) >>> 1;
+			if (counts[mid] <= k) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
 		}
+		return lbs[lo] + (k - counts[lo]);
 	}
 
 	public IntegerDomain bound(long lb, long ub) throws SugarException {
-		if (lb <= this.lb && this.ub <= ub)
+		final int n = lbs.length;
+		if (n == 0 || (lb <= lbs[0] && ubs[n-1] <= ub))
 			return this;
-		if (domain == null) {
-			lb = Math.max(this.lb, lb);
-			ub = Math.min(this.ub, ub);
-			return lb > ub ? new IntegerDomain() : new IntegerDomain(lb, ub);
-		} else {
-			return new IntegerDomain(domain.subSet(lb, ub + 1));
+		if (lb > ub)
+			return new IntegerDomain();
+		int i = Math.max(find(lb), 0);
+		if (i < n && ubs[i] < lb) {
+			i++;
+		}
+		final int j = find(ub);
+		if (i > j) {
+			return new IntegerDomain();
 		}
+		final long[] lbs0 = Arrays.copyOfRange(lbs, i, j + 1);
+		final long[] ubs0 = Arrays.copyOfRange(ubs, i, j + 1);
+		lbs0[0] = Math.max(lbs0[0], lb);
+		ubs0[j - i] = Math.min(ubs0[j - i], ub);
+		return new IntegerDomain(lbs0, ubs0, j - i + 1);
 	}
 
-	private class Iter implements Iterator<Long> {
+	private class Iter implements LongIterator {
+		int i;
 		long value;
 		long ub;
 
 		public Iter(long lb, long ub) {
-			value = lb;
+			i = Math.max(find(lb), 0);
+			if (i < lbs.length && ubs[i] < lb) {
+				i++;
+			}
+			value = i < lbs.length ? Math.max(lb, lbs[i]) : 0;
 			this.ub = ub;
 		}
 
 		public boolean hasNext() {
-			return value <= ub;
+			return i < lbs.length && value <= ub;
 		}
 
 		public Long next() {
-			return value++;
+			return nextLong();
+		}
+
+		public long nextLong() {
+			final long v = value;
+			if (v == ubs[i]) {
+				i++;
+				if (i < lbs.length) {
+					value = lbs[i];
+				}
+			} else {
+				value++;
+			}
+			return v;
 		}
 
 		public void remove() {
 		}
 	}
 
-	public Iterator<Long> values(long lb, long ub) {
-		if (lb > ub) {
-			return new Iter(lb, ub);
-		} else if (domain == null) {
-				lb = Math.max(lb, this.lb);
-				ub = Math.min(ub, this.ub);
-				return new Iter(lb, ub);
-		} else {
-			return domain.subSet(lb, ub + 1).iterator();
-		}
+	/**
+	 * Returns an iterator over the values from lb to ub in the domain.
+	 * Use nextLong to avoid boxing.
+	 */
+	public LongIterator values(long lb, long ub) {
+		return new Iter(lb, ub);
 	}
 
-	public Iterator<Long> values() {
-		return values(lb, ub);
+	public LongIterator values() {
+		return new Iter(Long.MIN_VALUE, Long.MAX_VALUE);
 	}
 
 	public Iterator<Long> iterator() {
@@ -175,99 +355,103 @@ public class IntegerDomain implements Iterable<Long> {
 	}
 
 	public IntegerDomain cup(IntegerDomain d1) throws SugarException {
-		if (domain == null || d1.domain == null) {
-			long lb = Math.min(this.lb, d1.lb);
-			long ub = Math.max(this.ub, d1.ub);
-			return new IntegerDomain(lb, ub);
-		} else {
-			SortedSet<Long> d = new TreeSet<Long>(domain);
-			d.addAll(d1.domain);
-			// return new IntegerDomain(d);
-			return create(d);
-		}
+		final int n = lbs.length + d1.lbs.length;
+		final long[] s = Arrays.copyOf(lbs, n);
+		final long[] e = Arrays.copyOf(ubs, n);
+		System.arraycopy(d1.lbs, 0, s, lbs.length, d1.lbs.length);
+		System.arraycopy(d1.ubs, 0, e, ubs.length, d1.ubs.length);
+		return union(s, e, n);
 	}
 
 	public IntegerDomain cap(IntegerDomain d1) throws SugarException {
-		if (d1.domain == null) {
-			return bound(d1.lb, d1.ub);
-		} else if (domain == null) {
-			return d1.bound(lb, ub);
-		} else {
-			SortedSet<Long> d = new TreeSet<Long>();
-			for (long value : domain) {
-				if (d1.contains(value)) {
-					d.add(value);
-				}
+		if (d1.isContiguous()) {
+			return d1.isEmpty() ? d1 : bound(d1.lbs[0], d1.ubs[0]);
+		} else if (isContiguous()) {
+			return isEmpty() ? this : d1.bound(lbs[0], ubs[0]);
+		}
+		final long[] lbs0 = new long[lbs.length + d1.lbs.length];
+		final long[] ubs0 = new long[lbs0.length];
+		int m = 0;
+		int i = 0;
+		int j = 0;
+		while (i < lbs.length && j < d1.lbs.length) {
+			final long lb0 = Math.max(lbs[i], d1.lbs[j]);
+			final long ub0 = Math.min(ubs[i], d1.ubs[j]);
+			if (lb0 <= ub0) {
+				lbs0[m] = lb0;
+				ubs0[m++] = ub0;
+			}
+			if (ubs[i] < d1.ubs[j]) {
+				i++;
+			} else {
+				j++;
 			}
-			return new IntegerDomain(d);
 		}
+		return new IntegerDomain(lbs0, ubs0, m);
 	}
 
 	public IntegerDomain neg() throws SugarException {
-		if (domain == null) {
-			return new IntegerDomain(-ub, -lb);
-		} else {
-			SortedSet<Long> d = new TreeSet<Long>();
-			for (long value : domain) {
-				d.add(-value);
-			}
-			// return new IntegerDomain(d);
-			return create(d);
+		final int n = lbs.length;
+		final long[] lbs0 = new long[n];
+		final long[] ubs0 = new long[n];
+		for (int i = 0; i < n; i++) {
+			lbs0[i] = -ubs[n-1-i];
+			ubs0[i] = -lbs[n-1-i];
 		}
+		return new IntegerDomain(lbs0, ubs0, n);
 	}
 
 	public IntegerDomain abs() throws SugarException {
-		if (domain == null) {
-			long lb0 = Math.min(Math.abs(lb), Math.abs(ub));
-			long ub0 = Math.max(Math.abs(lb), Math.abs(ub));
-			if (lb <= 0 && 0 <= ub) {
-				return new IntegerDomain(0, ub0);
-			} else {
-				return new IntegerDomain(lb0, ub0);
+		final int n = lbs.length;
+		final long[] s = new long[2*n];
+		final long[] e = new long[2*n];
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			if (lbs[i] < 0) {
+				s[m] = - Math.min(ubs[i], -1);
+				e[m++] = - lbs[i];
 			}
-		} else {
-			SortedSet<Long> d = new TreeSet<Long>();
-			for (long value : domain) {
-				d.add(Math.abs(value));
+			if (ubs[i] >= 0) {
+				s[m] = Math.max(lbs[i], 0);
+				e[m++] = ubs[i];
 			}
-			// return new IntegerDomain(d);
-			return create(d);
 		}
+		return union(s, e, m);
 	}
 
 	public IntegerDomain add(long a) throws SugarException {
-		if (domain == null) {
-			return new IntegerDomain(lb+a, ub+a);
-		} else {
-			SortedSet<Long> d = new TreeSet<Long>();
-			for (long value : domain) {
-				d.add(value + a);
-			}
-			// return new IntegerDomain(d);
-			return create(d);
+		final int n = lbs.length;
+		final long[] lbs0 = new long[n];
+		final long[] ubs0 = new long[n];
+		for (int i = 0; i < n; i++) {
+			lbs0[i] = lbs[i] + a;
+			ubs0[i] = ubs[i] + a;
 		}
+		return new IntegerDomain(lbs0, ubs0, n);
 	}
 
 	public IntegerDomain add(IntegerDomain d) throws SugarException {
 		if (d.size() == 1) {
-			return add(d.lb);
+			return add(d.lbs[0]);
 		} else 	if (size() == 1) {
-			return d.add(lb);
+			return d.add(lbs[0]);
 		}
-		if (domain == null || d.domain == null) {
-			long lb0 = lb + d.lb;
-			long ub0 = ub + d.ub;
+		final long n = (long)lbs.length * d.lbs.length;
+		if (n > MAX_SET_SIZE) {
+			long lb0 = getLowerBound() + d.getLowerBound();
+			long ub0 = getUpperBound() + d.getUpperBound();
 			return new IntegerDomain(lb0, ub0);
-		} else {
-			SortedSet<Long> d0 = new TreeSet<Long>();
-			for (long value1 : domain) {
-				for (long value2 : d.domain) {
-					d0.add(value1 + value2);
-				}
+		}
+		final long[] s = new long[(int)n];
+		final long[] e = new long[(int)n];
+		int m = 0;
+		for (int i = 0; i < lbs.length; i++) {
+			for (int j = 0; j < d.lbs.length; j++) {
+				s[m] = lbs[i] + d.lbs[j];
+				e[m++] = ubs[i] + d.ubs[j];
 			}
-			// return new IntegerDomain(d0);
-			return create(d0);
 		}
+		return union(s, e, m);
 	}
 
 	public IntegerDomain sub(long a) throws SugarException {
@@ -278,51 +462,68 @@ public class IntegerDomain implements Iterable<Long> {
 		return add(d.neg());
 	}
 
+	/**
+	 * Returns the values of the domain as a sorted array.
+	 */
+	public long[] toArray() {
+		final long[] values = new long[(int)size];
+		int k = 0;
+		for (int i = 0; i < lbs.length; i++) {
+			for (long value = lbs[i]; value <= ubs[i]; value++) {
+				values[k++] = value;
+			}
+		}
+		return values;
+	}
+
 	public IntegerDomain mul(long a) throws SugarException {
-		if (domain == null) {
-			if (size() <= MAX_SET_SIZE) {
-				SortedSet<Long> d = new TreeSet<Long>();
-				for (long value = lb; value <= ub; value++) {
-					d.add(value * a);
-				}
-				return create(d);
-			} else if (a < 0) {
-				return new IntegerDomain(ub*a, lb*a);
-			} else {
-				return new IntegerDomain(lb*a, ub*a);
+		if (a == 1) {
+			return this;
+		} else if (a == -1) {
+			return neg();
+		} else if (a == 0) {
+			return new IntegerDomain(0, 0);
+		}
+		if (size() <= MAX_SET_SIZE) {
+			final long[] values = toArray();
+			for (int i = 0; i < values.length; i++) {
+				values[i] *= a;
 			}
+			return create(values, values.length);
+		} else if (a < 0) {
+			return new IntegerDomain(getUpperBound()*a, getLowerBound()*a);
 		} else {
-			SortedSet<Long> d = new TreeSet<Long>();
-			for (long value : domain) {
-				d.add(value * a);
-			}
-			return create(d);
+			return new IntegerDomain(getLowerBound()*a, getUpperBound()*a);
 		}
 	}
 
 	public IntegerDomain mul(IntegerDomain d) throws SugarException {
 		if (d.size() == 1) {
-			return mul(d.lb);
+			return mul(d.lbs[0]);
 		} else if (size() == 1) {
-			return d.mul(lb);
-		}
-		if (domain == null || d.domain == null
-				|| size() * d.size() > MAX_SET_SIZE) {
-			long b00 = lb * d.lb;
-			long b01 = lb * d.ub;
-			long b10 = ub * d.lb;
-			long b11 = ub * d.ub;
+			return d.mul(lbs[0]);
+		}
+		if (size() * d.size() > MAX_SET_SIZE) {
+			final long lb = getLowerBound();
+			final long ub = getUpperBound();
+			long b00 = lb * d.getLowerBound();
+			long b01 = lb * d.getUpperBound();
+			long b10 = ub * d.getLowerBound();
+			long b11 = ub * d.getUpperBound();
 			long lb0 = Math.min(Math.min(b00, b01), Math.min(b10, b11));
 			long ub0 = Math.max(Math.max(b00, b01), Math.max(b10, b11));
 			return new IntegerDomain(lb0, ub0);
 		} else {
-			SortedSet<Long> d0 = new TreeSet<Long>();
-			for (long value1 : domain) {
-				for (long value2 : d.domain) {
-					d0.add(value1 * value2);
+			final long[] values1 = toArray();
+			final long[] values2 = d.toArray();
+			final long[] values = new long[values1.length * values2.length];
+			int k = 0;
+			for (long value1 : values1) {
+				for (long value2 : values2) {
+					values[k++] = value1 * value2;
 				}
 			}
-			return create(d0);
+			return create(values, k);
 		}
 	}
 
@@ -334,223 +535,167 @@ public class IntegerDomain implements Iterable<Long> {
 	}
 
 	public IntegerDomain div(long a) throws SugarException {
-		if (domain == null) {
-			if (a < 0) {
-				return new IntegerDomain(div(ub,a), div(lb,a));
-			} else {
-				return new IntegerDomain(div(lb,a), div(ub,a));
+		if (size() <= MAX_SET_SIZE) {
+			final long[] values = toArray();
+			for (int i = 0; i < values.length; i++) {
+				values[i] = div(values[i], a);
 			}
+			return create(values, values.length);
+		} else if (a < 0) {
+			return new IntegerDomain(div(getUpperBound(),a), div(getLowerBound(),a));
 		} else {
-			SortedSet<Long> d = new TreeSet<Long>();
-			for (long value : domain) {
-				d.add(div(value, a));
-			}
-			return create(d);
+			return new IntegerDomain(div(getLowerBound(),a), div(getUpperBound(),a));
 		}
 	}
 
 	public IntegerDomain div(IntegerDomain d) throws SugarException {
 		if (d.size() == 1) {
-			return div(d.lb);
+			return div(d.lbs[0]);
 		}
-		if (domain == null || d.domain == null
+		if (isContiguous() || d.isContiguous()
 				|| size() * d.size() > MAX_SET_SIZE) {
-			long b00 = div(lb, d.lb);
-			long b01 = div(lb, d.ub);
-			long b10 = div(ub, d.lb);
-			long b11 = div(ub, d.ub);
+			final long lb = getLowerBound();
+			final long ub = getUpperBound();
+			final long dlb = d.getLowerBound();
+			final long dub = d.getUpperBound();
+			long b00 = div(lb, dlb);
+			long b01 = div(lb, dub);
+			long b10 = div(ub, dlb);
+			long b11 = div(ub, dub);
 			long lb0 = Math.min(Math.min(b00, b01), Math.min(b10, b11));
 			long ub0 = Math.max(Math.max(b00, b01), Math.max(b10, b11));
-			if (d.lb <= 1 && 1 <= d.ub) {
+			if (dlb <= 1 && 1 <= dub) {
 				lb0 = Math.min(lb0, Math.min(lb, ub));
 				ub0 = Math.max(ub0, Math.max(lb, ub));
 			}
-			if (d.lb <= -1 && -1 <= d.ub) {
+			if (dlb <= -1 && -1 <= dub) {
 				lb0 = Math.min(lb0, Math.min(-lb, -ub));
 				ub0 = Math.max(ub0, Math.max(-lb, -ub));
 			}
 			return new IntegerDomain(lb0, ub0);
 		} else {
-			SortedSet<Long> d0 = new TreeSet<Long>();
-			for (long value1 : domain) {
-				for (long value2 : d.domain) {
-					d0.add(div(value1, value2));
+			final long[] values1 = toArray();
+			final long[] values2 = d.toArray();
+			final long[] values = new long[values1.length * values2.length];
+			int k = 0;
+			for (long value1 : values1) {
+				for (long value2 : values2) {
+					values[k++] = div(value1, value2);
 				}
 			}
-			return create(d0);
+			return create(values, k);
 		}
 	}
 
 	public IntegerDomain mod(long a) throws SugarException {
 		a = Math.abs(a);
-		if (domain == null) {
+		if (isContiguous() || size() > MAX_SET_SIZE) {
 			return new IntegerDomain(0, a - 1);
 		} else {
-			SortedSet<Long> d = new TreeSet<Long>();
-			for (long value : domain) {
-				d.add(value % a);
+			final long[] values = toArray();
+			for (int i = 0; i < values.length; i++) {
+				values[i] %= a;
 			}
-			return create(d);
+			return create(values, values.length);
 		}
 	}
 
 	public IntegerDomain mod(IntegerDomain d) throws SugarException {
 		if (d.size() == 1) {
-			return mod(d.lb);
+			return mod(d.lbs[0]);
 		}
-		if (domain == null || d.domain == null) {
+		if (isContiguous() || d.isContiguous()
+				|| size() > MAX_SET_SIZE || d.size() > MAX_SET_SIZE) {
 			long lb0 = 0;
-			long ub0 = Math.max(Math.abs(d.lb), Math.abs(d.ub)) - 1;
+			long ub0 = Math.max(Math.abs(d.getLowerBound()), Math.abs(d.getUpperBound())) - 1;
 			return new IntegerDomain(lb0, ub0);
 		} else {
-			SortedSet<Long> d0 = new TreeSet<Long>();
-			for (long value1 : domain) {
-				for (long value2 : d.domain) {
-					d0.add(value1 % value2);
+			final long[] values1 = toArray();
+			final long[] values2 = d.toArray();
+			final long[] values = new long[values1.length * values2.length];
+			int k = 0;
+			for (long value1 : values1) {
+				for (long value2 : values2) {
+					values[k++] = value1 % value2;
 				}
 			}
-			return create(d0);
+			return create(values, k);
 		}
 	}
 
 	public IntegerDomain pow(long a) throws SugarException {
-		if (domain == null) {
-			long a1 = (long)Math.round(Math.pow(lb, a));
-			long a2 = (long)Math.round(Math.pow(ub, a));
-			long lb0 = Math.min(a1, a2);
-			long ub0 = Math.max(a1, a2);
-			if (a % 2 == 0 && lb <= 0 && 0 <= ub) {
-				return new IntegerDomain(0, ub0);
-			} else {
-				return new IntegerDomain(lb0, ub0);
+		if (size() <= MAX_SET_SIZE) {
+			final long[] values = toArray();
+			for (int i = 0; i < values.length; i++) {
+				values[i] = (long)Math.round(Math.pow(values[i], a));
 			}
+			return create(values, values.length);
+		}
+		final long lb = getLowerBound();
+		final long ub = getUpperBound();
+		long a1 = (long)Math.round(Math.pow(lb, a));
+		long a2 = (long)Math.round(Math.pow(ub, a));
+		long lb0 = Math.min(a1, a2);
+		long ub0 = Math.max(a1, a2);
+		if (a % 2 == 0 && lb <= 0 && 0 <= ub) {
+			return new IntegerDomain(0, ub0);
 		} else {
-			SortedSet<Long> d = new TreeSet<Long>();
-			for (long value : domain) {
-				d.add((long)Math.round(Math.pow(value, a)));
-			}
-			return create(d);
+			return new IntegerDomain(lb0, ub0);
 		}
 	}
 
 	public IntegerDomain min(IntegerDomain d) throws SugarException {
-		long lb0 = Math.min(lb, d.lb);
-		long ub0 = Math.min(ub, d.ub);
-		if (ub <= d.lb) {
+		if (getUpperBound() <= d.getLowerBound()) {
 			return this;
-		} else if (d.ub <= lb) {
+		} else if (d.getUpperBound() <= getLowerBound()) {
 			return d;
 		}
-		if (domain == null) {
-			if (d.domain == null) {
-				return new IntegerDomain(lb0, ub0);
-			} else {
-				return d.min(this);
-			}
-		} else {
-			if (d.domain == null) {
-				return create(domain.subSet(lb0, ub0 + 1));
-			} else {
-				SortedSet<Long> d1 = new TreeSet<Long>(domain);
-				d1.addAll(d.domain);
-				d1 = d1.subSet(lb0, ub0 + 1);
-				return create(d1);
-			}
-		}
+		long lb0 = Math.min(getLowerBound(), d.getLowerBound());
+		long ub0 = Math.min(getUpperBound(), d.getUpperBound());
+		return cup(d).bound(lb0, ub0);
 	}
 
 	public IntegerDomain max(IntegerDomain d) throws SugarException {
-		long lb0 = Math.max(lb, d.lb);
-		long ub0 = Math.max(ub, d.ub);
-		if (lb >= d.ub) {
+		if (getLowerBound() >= d.getUpperBound()) {
 			return this;
-		} else if (d.lb >= ub) {
+		} else if (d.getLowerBound() >= getUpperBound()) {
 			return d;
 		}
-		if (domain == null) {
-			if (d.domain == null) {
-				return new IntegerDomain(lb0, ub0);
-			} else {
-				return d.max(this);
-			}
-		} else {
-			if (d.domain == null) {
-				return create(domain.subSet(lb0, ub0 + 1));
-			} else {
-				SortedSet<Long> d1 = new TreeSet<Long>(domain);
-				d1.addAll(d.domain);
-				d1 = d1.subSet(lb0, ub0 + 1);
-				return create(d1);
-			}
-		}
-	}
-
-	public SortedSet<Long> headSet(long value) {
-		return domain.headSet(value);
+		long lb0 = Math.max(getLowerBound(), d.getLowerBound());
+		long ub0 = Math.max(getUpperBound(), d.getUpperBound());
+		return cup(d).bound(lb0, ub0);
 	}
 
 	public Expression toExpression() {
-		if (domain == null) {
-			return Expression.create(Expression.create(Expression.create(lb),
-			                         Expression.create(ub)));
+		if (lbs.length == 1) {
+			return Expression.create(Expression.create(Expression.create(lbs[0]),
+			                         Expression.create(ubs[0])));
 		}
 		List<Expression> doms = new ArrayList<Expression>();
-		long value0 = Long.MIN_VALUE;
-		long value1 = Long.MIN_VALUE;
-		for (long value : domain) {
-			if (value0 == Long.MIN_VALUE) {
-				value0 = value1 = value;
-			} else if (value1 + 1 == value) {
-				value1 = value;
+		for (int i = 0; i < lbs.length; i++) {
+			if (lbs[i] == ubs[i]) {
+				doms.add(Expression.create(lbs[i]));
 			} else {
-				if (value0 == value1) {
-					doms.add(Expression.create(value0));
-				} else {
-					doms.add(Expression.create(Expression.create(value0),
-					                           Expression.create(value1)));
-				}
-				value0 = value1 = value;
+				doms.add(Expression.create(Expression.create(lbs[i]),
+				                           Expression.create(ubs[i])));
 			}
 		}
-		if (value0 == value1) {
-			doms.add(Expression.create(value0));
-		} else {
-			doms.add(Expression.create(Expression.create(value0),
-																 Expression.create(value1)));
-		}
 		return Expression.create(doms);
 	}
 
 	public void appendValues(StringBuilder sb) {
-		if (domain == null) {
-			sb.append(lb + ".." + ub);
+		if (lbs.length == 1) {
+			sb.append(lbs[0] + ".." + ubs[0]);
 		} else {
 			String delim = "";
-			long value0 = Long.MIN_VALUE;
-			long value1 = Long.MIN_VALUE;
-			for (long value : domain) {
-				if (value0 == Long.MIN_VALUE) {
-					value0 = value1 = value;
-				} else if (value1 + 1 == value) {
-					value1 = value;
-				} else {
-					sb.append(delim);
-					if (value0 == value1) {
-						sb.append(value0);
-					} else {
-						sb.append(value0 + ".." + value1);
-					}
-					delim = " ";
-					value0 = value1 = value;
-				}
-			}
-			if (value0 != Long.MIN_VALUE) {
+			for (int i = 0; i < lbs.length; i++) {
 				sb.append(delim);
-				if (value0 == value1) {
-					sb.append(value0);
+				if (lbs[i] == ubs[i]) {
+					sb.append(lbs[i]);
 				} else {
-					sb.append(value0 + ".." + value1);
+					sb.append(lbs[i] + ".." + ubs[i]);
 				}
+				delim = " ";
 			}
 		}
 	}
@@ -558,36 +703,19 @@ public class IntegerDomain implements Iterable<Long> {
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-		if (domain == null) {
-			sb.append(lb + " " + ub);
+		if (lbs.length == 1) {
+			sb.append(lbs[0] + " " + ubs[0]);
 		} else {
 			sb.append("(");
 			String delim = "";
-			long value0 = Long.MIN_VALUE;
-			long value1 = Long.MIN_VALUE;
-			for (long value : domain) {
-				if (value0 == Long.MIN_VALUE) {
-					value0 = value1 = value;
-				} else if (value1 + 1 == value) {
-					value1 = value;
-				} else {
-					sb.append(delim);
-					if (value0 == value1) {
-						sb.append(value0);
-					} else {
-						sb.append("(" + value0 + " " + value1 + ")");
-					}
-					delim = " ";
-					value0 = value1 = value;
-				}
-			}
-			if (value0 != Long.MIN_VALUE) {
+			for (int i = 0; i < lbs.length; i++) {
 				sb.append(delim);
-				if (value0 == value1) {
-					sb.append(value0);
+				if (lbs[i] == ubs[i]) {
+					sb.append(lbs[i]);
 				} else {
-					sb.append("(" + value0 + " " + value1 + ")");
+					sb.append("(" + lbs[i] + " " + ubs[i] + ")");
 				}
+				delim = " ";
 			}
 			sb.append(")");
 		}
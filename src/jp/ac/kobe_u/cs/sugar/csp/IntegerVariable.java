@@ -4,6 +4,7 @@ import java.util.List;
 import java.util.ArrayList;
 
 import jp.ac.kobe_u.cs.sugar.SugarException;
+import jp.ac.kobe_u.cs.sugar.SugarMain;
 
 /**
  * This class implements an integer variable of CSP.
@@ -14,7 +15,15 @@ public class IntegerVariable implements Comparable<IntegerVariable> {
 	private static final String AUX_PRE = "_$I";
 	private static String AUX_NAME_PREFIX = AUX_PRE;
 	private static long auxIntegerVariablesSize = 0;
+	private static int integerVariablesSize = 0;
+	private final int id;
+	/*
+	 * The name of an aux variable is made from auxPrefix and auxIndex
+	 * when it is first requested.
+	 */
 	private String name;
+	private String auxPrefix;
+	private long auxIndex;
 	private IntegerDomain domain;
 	private boolean aux;
 	private String comment = null;
@@ -22,6 +31,7 @@ public class IntegerVariable implements Comparable<IntegerVariable> {
 	private long code;
 	private long value;
 	private long offset;
+	private IntegerDomain ranks = null;
 	private boolean isDigit_;
 	private IntegerVariable[] vs = null;
 
@@ -33,33 +43,58 @@ public class IntegerVariable implements Comparable<IntegerVariable> {
 		auxIntegerVariablesSize = 0;
 	}
 
-	public IntegerVariable(String name, IntegerDomain domain) throws SugarException {
+	private IntegerVariable(String name, String auxPrefix, long auxIndex,
+	                        IntegerDomain domain) throws SugarException {
+		id = integerVariablesSize++;
 		this.name = name;
+		this.auxPrefix = auxPrefix;
+		this.auxIndex = auxIndex;
 		this.domain = domain;
 		if (domain.isEmpty()) {
-			throw new SugarException("Integer variable domain error " + name);
+			throw new SugarException("Integer variable domain error " + getName());
 		}
 		value = domain.getLowerBound();
 		aux = false;
 	}
 
+	public IntegerVariable(String name, IntegerDomain domain) throws SugarException {
+		this(name, null, 0, domain);
+	}
+
 	public IntegerVariable(IntegerDomain domain) throws SugarException {
-		this(AUX_NAME_PREFIX + (++auxIntegerVariablesSize), domain);
+		this(null, AUX_NAME_PREFIX, ++auxIntegerVariablesSize, domain);
 		aux = true;
 	}
 
 	public IntegerVariable(String name) {
+		id = integerVariablesSize++;
 		this.name = name;
 	}
 
+	/**
+	 * Returns the id of the integer variable.
+	 * Ids are dense and given in the order of creation.
+	 * @return the id
+	 */
+	public int getId() {
+		return id;
+	}
+
 	/**
 	 * Returns the name of the integer variable. 
 	 * @return the name
 	 */
 	public String getName() {
+		if (name == null) {
+			name = auxPrefix + auxIndex;
+		}
 		return name;
 	}
 
+	boolean hasName() {
+		return name != null;
+	}
+
 	public IntegerDomain getDomain() {
 		return domain;
 	}
@@ -88,6 +123,19 @@ public class IntegerVariable implements Comparable<IntegerVariable> {
 		offset = off;
 	}
 
+	/**
+	 * Returns the original domain when the variable is encoded by the
+	 * ranks of its values, otherwise null.
+	 * @return the original domain or null
+	 */
+	public IntegerDomain getRanks() {
+		return ranks;
+	}
+
+	public void setRanks(IntegerDomain d) {
+		ranks = d;
+	}
+
 	/**
 	 * Returns the comment set to the integer variable.
 	 * @return the comment
@@ -198,7 +246,9 @@ public class IntegerVariable implements Comparable<IntegerVariable> {
 				IntegerDomain dom = new IntegerDomain(0, ubi);
 				vs[i] = new IntegerVariable(dom);
 				vs[i].isDigit(true);
-				vs[i].setComment(getName() + "["+i+"]");
+				if (SugarMain.debug >= 1) {
+					vs[i].setComment(getName() + "["+i+"]");
+				}
 				if (this.isAux())
 					vs[i].isAux(true);
 			}
@@ -216,7 +266,7 @@ public class IntegerVariable implements Comparable<IntegerVariable> {
 			return 0;
 		if (v == null)
 			return 1;
-		return name.compareTo(v.name);
+		return id < v.id ? -1 : id == v.id ? 0 : 1;
 	}
 
 	/* (non-Javadoc)
@@ -224,10 +274,7 @@ public class IntegerVariable implements Comparable<IntegerVariable> {
 	 */
 	@Override
 	public int hashCode() {
-		final int PRIME = 31;
-		int result = 1;
-		result = PRIME * result + ((name == null) ? 0 : name.hashCode());
-		return result;
+		return id;
 	}
 
 	/* (non-Javadoc)
@@ -242,12 +289,7 @@ public class IntegerVariable implements Comparable<IntegerVariable> {
 		if (getClass() != obj.getClass())
 			return false;
 		final IntegerVariable other = (IntegerVariable) obj;
-		if (name == null) {
-			if (other.name != null)
-				return false;
-		} else if (!name.equals(other.name))
-			return false;
-		return true;
+		return id == other.id;
 	}
 
 	/**
@@ -258,7 +300,7 @@ public class IntegerVariable implements Comparable<IntegerVariable> {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("(int ");
-		sb.append(name);
+		sb.append(getName());
 		sb.append(" ");
 		sb.append(domain.toString());
 		sb.append(")");
@@ -112,6 +112,91 @@ public class LinearLiteral extends ArithmeticLiteral {
 		return new long[] { lb, ub };
 	}
 
+	/**
+	 * Bounds all variables in one pass.
+	 * The bounds of the other terms are obtained by subtracting the
+	 * term of each variable from the bounds of the whole sum, instead of
+	 * summing up the other domains for every variable.
+	 */
+	@Override
+	public long propagate() throws SugarException {
+		if (op == Operator.NE)
+			return 0;
+		final int n = linearSum.size();
+		final long[] los = new long[n];
+		final long[] his = new long[n];
+		long lo = linearSum.getB();
+		long hi = linearSum.getB();
+		for (int i = 0; i < n; i++) {
+			final long a = linearSum.getA(i);
+			final IntegerDomain d = linearSum.getVariable(i).getDomain();
+			if (d.isEmpty())
+				return 0;
+			los[i] = a > 0 ? a*d.getLowerBound() : a*d.getUpperBound();
+			his[i] = a > 0 ? a*d.getUpperBound() : a*d.getLowerBound();
+			lo += los[i];
+			hi += his[i];
+		}
+		long count = 0;
+		for (int i = 0; i < n; i++) {
+			final IntegerVariable v = linearSum.getVariable(i);
+			final long a = linearSum.getA(i);
+			final long olb = lo - los[i];
+			final long oub = hi - his[i];
+			long lb = v.getDomain().getLowerBound();
+			long ub = v.getDomain().getUpperBound();
+			if (a > 0) {
+				if (op == Operator.EQ) {
+					lb = divceil(-oub, a);
+				}
+				ub = divfloor(-olb, a);
+			} else {
+				lb = divceil(-olb, a);
+				if (op == Operator.EQ) {
+					ub = divfloor(-oub, a);
+				}
+			}
+			if (lb > ub)
+				continue;
+			final long c = v.bound(lb, ub);
+			if (c > 0) {
+				final IntegerDomain d = v.getDomain();
+				if (d.isEmpty())
+					return count + c;
+				count += c;
+				lo -= los[i];
+				hi -= his[i];
+				los[i] = a > 0 ? a*d.getLowerBound() : a*d.getUpperBound();
+				his[i] = a > 0 ? a*d.getUpperBound() : a*d.getLowerBound();
+				lo += los[i];
+				hi += his[i];
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public boolean isInconsistent() throws SugarException {
+		long lo = linearSum.getB();
+		long hi = linearSum.getB();
+		for (int i = 0; i < linearSum.size(); i++) {
+			final long a = linearSum.getA(i);
+			final IntegerDomain d = linearSum.getVariable(i).getDomain();
+			if (d.isEmpty())
+				return true;
+			lo += a > 0 ? a*d.getLowerBound() : a*d.getUpperBound();
+			hi += a > 0 ? a*d.getUpperBound() : a*d.getLowerBound();
+		}
+		switch(op) {
+		case LE:
+			return lo > 0;
+		case EQ:
+			return lo > 0 || hi < 0;
+		default:
+			return lo == 0 && hi == 0;
+		}
+	}
+
 	/**
 	 * Returns the linear expression of the comparison literal.
 	 * @return the linear expression
@@ -1,12 +1,12 @@
 package jp.ac.kobe_u.cs.sugar.csp;
 
 import java.io.IOException;
+import java.util.AbstractSet;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 import jp.ac.kobe_u.cs.sugar.SugarConstants;
 import jp.ac.kobe_u.cs.sugar.SugarException;
@@ -24,17 +24,26 @@ import jp.ac.kobe_u.cs.sugar.expression.Expression;
  */
 public class LinearSum {
 	private long b;
-	private SortedMap<IntegerVariable, Long> coef;
+	/*
+	 * Variables sorted by IntegerVariable.compareTo and their nonzero
+	 * coefficients.  Only the first n elements are used.
+	 */
+	private IntegerVariable[] vs;
+	private long[] as;
+	private int n;
+	private Set<IntegerVariable> variables = null;
 	private IntegerDomain domain = null;
 
 	public LinearSum(long b) {
-		coef = new TreeMap<IntegerVariable, Long>();
+		vs = new IntegerVariable[2];
+		as = new long[2];
+		n = 0;
 		this.b = b;
 	}
 
 	public LinearSum(long a0, IntegerVariable v0, long b) {
 		this(b);
-		coef.put(v0, a0);
+		setA(a0, v0);
 	}
 
 	public LinearSum(IntegerVariable v0) {
@@ -43,7 +52,9 @@ public class LinearSum {
 
 	public LinearSum(LinearSum e) {
 		b = e.b;
-		coef = new TreeMap<IntegerVariable, Long>(e.coef);
+		n = e.n;
+		vs = Arrays.copyOf(e.vs, Math.max(n, 2));
+		as = Arrays.copyOf(e.as, Math.max(n, 2));
 		domain = null;
 	}
 
@@ -52,7 +63,7 @@ public class LinearSum {
 	 * @return the size
 	 */
 	public int size() {
-		return coef.size();
+		return n;
 	}
 
 	public long getB() {
@@ -63,39 +74,128 @@ public class LinearSum {
 		this.b = b;
 	}
 
-	public SortedMap<IntegerVariable,Long> getCoef() {
-		return coef;
+	/**
+	 * Returns the i-th variable in the order of IntegerVariable.compareTo.
+	 * @param i the index
+	 * @return the variable
+	 */
+	public IntegerVariable getVariable(int i) {
+		return vs[i];
+	}
+
+	/**
+	 * Returns the coefficient of the i-th variable.
+	 * @param i the index
+	 * @return the coefficient
+	 */
+	public long getA(int i) {
+		return as[i];
+	}
+
+	private class Variables extends AbstractSet<IntegerVariable> {
+		@Override
+		public int size() {
+			return n;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return o instanceof IntegerVariable && indexOf((IntegerVariable)o) >= 0;
+		}
+
+		@Override
+		public Iterator<IntegerVariable> iterator() {
+			return new Iterator<IntegerVariable>() {
+				private int i = 0;
+
+				public boolean hasNext() {
+					return i < n;
+				}
+
+				public IntegerVariable next() {
+					if (i >= n) {
+						throw new NoSuchElementException();
+					}
+					return vs[i++];
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
 	}
 
+	/**
+	 * Returns a read-only view of the variables.
+	 * @return the variables
+	 */
 	public Set<IntegerVariable> getVariables() {
-		return coef.keySet();
+		if (variables == null) {
+			variables = new Variables();
+		}
+		return variables;
 	}
 
 	public boolean isIntegerVariable() {
-		return b == 0 && size() == 1 && getA(coef.firstKey()) == 1;
+		return b == 0 && n == 1 && as[0] == 1;
 	}
 
-	public Long getA(IntegerVariable v) {
-		Long a = coef.get(v);
-		if (a == null) {
-			a = 0L;
+	/*
+	 * Returns the index of v, or -(insertion point)-1.
+	 */
+	private int indexOf(IntegerVariable v) {
+		int lo = 0;
+		int hi = n - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			final int c = vs[mid].compareTo(v);
+			if (c < 0) {
+				lo = mid + 1;
+			} else if (c > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
 		}
-		return a;
+		return -(lo + 1);
+	}
+
+	public long getA(IntegerVariable v) {
+		final int i = indexOf(v);
+		return i >= 0 ? as[i] : 0;
 	}
 
 	public void setA(long a, IntegerVariable v) {
-		if (a == 0) {
-			coef.remove(v);
-		} else {
-			coef.put(v, a);
+		int i = indexOf(v);
+		if (i >= 0) {
+			if (a == 0) {
+				System.arraycopy(vs, i + 1, vs, i, n - i - 1);
+				System.arraycopy(as, i + 1, as, i, n - i - 1);
+				n--;
+				vs[n] = null;
+			} else {
+				as[i] = a;
+			}
+		} else if (a != 0) {
+			i = -(i + 1);
+			if (n == vs.length) {
+				vs = Arrays.copyOf(vs, 2*n);
+				as = Arrays.copyOf(as, 2*n);
+			}
+			System.arraycopy(vs, i, vs, i + 1, n - i);
+			System.arraycopy(as, i, as, i + 1, n - i);
+			vs[i] = v;
+			as[i] = a;
+			n++;
 		}
 		domain = null;
 	}
 
 	public boolean isDomainLargerThan(long limit) {
 		long size = 1;
-		for (IntegerVariable v : coef.keySet()) {
-			size *= v.getDomain().size();
+		for (int i = 0; i < n; i++) {
+			size *= vs[i].getDomain().size();
 			if (size > limit)
 				return true;
 		}
@@ -104,10 +204,10 @@ public class LinearSum {
 
 	public boolean isDomainLargerThanExcept(long limit, IntegerVariable v) {
 		long size = 1;
-		for (IntegerVariable v0 : coef.keySet()) {
-			if (v0.equals(v))
+		for (int i = 0; i < n; i++) {
+			if (vs[i].equals(v))
 				continue;
-			size *= v0.getDomain().size();
+			size *= vs[i].getDomain().size();
 			if (size > limit)
 				return true;
 		}
@@ -119,17 +219,47 @@ public class LinearSum {
 		return isDomainLargerThanExcept(limit, v);
 	}
 
+	/*
+	 * Sets this to this + c*linearSum by merging the sorted arrays.
+	 */
+	private void add(long c, LinearSum linearSum) {
+		final int m = linearSum.n;
+		final IntegerVariable[] vs0 = new IntegerVariable[Math.max(n + m, 2)];
+		final long[] as0 = new long[vs0.length];
+		int k = 0;
+		int i = 0;
+		int j = 0;
+		while (i < n || j < m) {
+			final int cmp = i >= n ? 1 : j >= m ? -1 : vs[i].compareTo(linearSum.vs[j]);
+			if (cmp < 0) {
+				vs0[k] = vs[i];
+				as0[k++] = as[i++];
+			} else if (cmp > 0) {
+				vs0[k] = linearSum.vs[j];
+				as0[k++] = c * linearSum.as[j++];
+			} else {
+				final long a = as[i] + c * linearSum.as[j];
+				if (a != 0) {
+					vs0[k] = vs[i];
+					as0[k++] = a;
+				}
+				i++;
+				j++;
+			}
+		}
+		b += c * linearSum.b;
+		vs = vs0;
+		as = as0;
+		n = k;
+		domain = null;
+	}
+
 	/**
 	 * Adds the given linear expression.
 	 * @param linearSum the linear expression to be added.
 	 */
 	public void add(LinearSum linearSum) {
-		b += linearSum.b;
-		for (IntegerVariable v : linearSum.coef.keySet()) {
-			long a = getA(v) + linearSum.getA(v);
-			setA(a, v);
-		}
-		domain = null;
+		add(1, linearSum);
 	}
 
 	/**
@@ -137,12 +267,24 @@ public class LinearSum {
 	 * @param linearSum the linear expression to be subtracted.
 	 */
 	public void subtract(LinearSum linearSum) {
-		b -= linearSum.b;
-		for (IntegerVariable v : linearSum.coef.keySet()) {
-			long a = getA(v) - linearSum.getA(v);
-			setA(a, v);
+		add(-1, linearSum);
+	}
+
+	/*
+	 * Removes zero coefficients.
+	 */
+	private void compact() {
+		int k = 0;
+		for (int i = 0; i < n; i++) {
+			if (as[i] != 0) {
+				vs[k] = vs[i];
+				as[k++] = as[i];
+			}
 		}
-		domain = null;
+		for (int i = k; i < n; i++) {
+			vs[i] = null;
+		}
+		n = k;
 	}
 
 	/**
@@ -151,19 +293,19 @@ public class LinearSum {
 	 */
 	public void multiply(long c) {
 		b *= c;
-		for (IntegerVariable v : coef.keySet()) {
-			long a = c * getA(v);
-			setA(a, v);
+		for (int i = 0; i < n; i++) {
+			as[i] *= c;
 		}
+		compact();
 		domain = null;
 	}
 
 	public void divide(long c) {
 		b /= c;
-		for (IntegerVariable v : coef.keySet()) {
-			long a = getA(v) / c;
-			setA(a, v);
+		for (int i = 0; i < n; i++) {
+			as[i] /= c;
 		}
+		compact();
 		domain = null;
 	}
 
@@ -182,9 +324,9 @@ public class LinearSum {
 		if (size() == 0) {
 			return b == 0 ? 1 : Math.abs(b);
 		}
-		long gcd = Math.abs(getA(coef.firstKey()));
-		for (IntegerVariable v : coef.keySet()) {
-			gcd = gcd(gcd, Math.abs(getA(v)));
+		long gcd = Math.abs(as[0]);
+		for (int i = 1; i < n; i++) {
+			gcd = gcd(gcd, Math.abs(as[i]));
 			if (gcd == 1)
 				break;
 		}
@@ -204,9 +346,8 @@ public class LinearSum {
 	public IntegerDomain getDomain() throws SugarException {
 		if (domain == null) {
 			domain = new IntegerDomain(b, b);
-			for (IntegerVariable v : coef.keySet()) {
-				long a = getA(v);
-				domain = domain.add(v.getDomain().mul(a));
+			for (int i = 0; i < n; i++) {
+				domain = domain.add(vs[i].getDomain().mul(as[i]));
 			}
 		}
 		return domain;
@@ -215,10 +356,9 @@ public class LinearSum {
 	public IntegerDomain getDomainExcept(IntegerVariable v) throws SugarException {
 		// Re-calculation is needed since variable domains might be modified. 
 		IntegerDomain d = new IntegerDomain(b, b);
-		for (IntegerVariable v1 : coef.keySet()) {
-			if (! v1.equals(v)) {
-				long a = getA(v1);
-				d = d.add(v1.getDomain().mul(a));
+		for (int i = 0; i < n; i++) {
+			if (! vs[i].equals(v)) {
+				d = d.add(vs[i].getDomain().mul(as[i]));
 			}
 		}
 		return d;
@@ -229,9 +369,9 @@ public class LinearSum {
 		for (int i = 0; i < m; i++) {
 			es[i] = new LinearSum(0);
 		}
-		IntegerVariable[] vs = getVariablesSorted();
-		for (int i = 0; i < vs.length; i++) {
-			IntegerVariable v = vs[i];
+		IntegerVariable[] vs0 = getVariablesSorted();
+		for (int i = 0; i < vs0.length; i++) {
+			IntegerVariable v = vs0[i];
 			es[i % m].setA(getA(v), v);
 		}
 		return es;
@@ -239,19 +379,17 @@ public class LinearSum {
 
 	public IntegerVariable getLargestDomainVariable() {
 		IntegerVariable var = null;
-		for (IntegerVariable v : coef.keySet()) {
-			if (var == null || var.getDomain().size() < v.getDomain().size()) {
-				var = v;
+		for (int i = 0; i < n; i++) {
+			if (var == null || var.getDomain().size() < vs[i].getDomain().size()) {
+				var = vs[i];
 			}
 		}
 		return var;
 	}
 
 	public IntegerVariable[] getVariablesSorted() {
-		int n = coef.size();
-		IntegerVariable[] vs = new IntegerVariable[n];
-		vs = coef.keySet().toArray(vs);
-		Arrays.sort(vs, new Comparator<IntegerVariable>() {
+		IntegerVariable[] vs0 = Arrays.copyOf(vs, n);
+		Arrays.sort(vs0, new Comparator<IntegerVariable>() {
 			public int compare(IntegerVariable v1, IntegerVariable v2) {
 				long s1 = v1.getDomain().size();
 				long s2 = v2.getDomain().size();
@@ -264,14 +402,14 @@ public class LinearSum {
 				return v1.compareTo(v2);
 			}
 		});
-		return vs;
+		return vs0;
 	}
 
 	public Expression toExpression() {
 		Expression x = Expression.create(b);
-		for (IntegerVariable v : coef.keySet()) {
-			Expression ax = Expression.create(getA(v));
-			Expression vx = Expression.create(v.getName());
+		for (int i = 0; i < n; i++) {
+			Expression ax = Expression.create(as[i]);
+			Expression vx = Expression.create(vs[i].getName());
 			x = x.add(ax.mul(vx));
 		}
 		return x;
@@ -287,7 +425,13 @@ public class LinearSum {
 			return false;
 		if (this == linearSum)
 			return true;
-		return b == linearSum.b && coef.equals(linearSum.coef);
+		if (b != linearSum.b || n != linearSum.n)
+			return false;
+		for (int i = 0; i < n; i++) {
+			if (as[i] != linearSum.as[i] || ! vs[i].equals(linearSum.vs[i]))
+				return false;
+		}
+		return true;
 	}
 
 	/**
@@ -313,7 +457,11 @@ public class LinearSum {
 	public int hashCode() {
 		final int PRIME = 31;
 		int result = 1;
-		result = PRIME * result + ((coef == null) ? 0 : coef.hashCode());
+		int h = 0;
+		for (int i = 0; i < n; i++) {
+			h += vs[i].hashCode() ^ (int)(as[i] ^ (as[i] >>> 32));
+		}
+		result = PRIME * result + h;
 		result = PRIME * result + (int)b;
 		return result;
 	}
@@ -326,13 +474,13 @@ public class LinearSum {
 		StringBuilder sb = new StringBuilder();
 		sb.append("(");
 		sb.append(SugarConstants.ADD);
-		for (IntegerVariable v : coef.keySet()) {
+		for (int i = 0; i < n; i++) {
 			sb.append(" (");
 			sb.append(SugarConstants.MUL);
 			sb.append(" ");
-			sb.append(coef.get(v));
+			sb.append(as[i]);
 			sb.append(" ");
-			sb.append(v.getName());
+			sb.append(vs[i].getName());
 			sb.append(")");
 		}
 		sb.append(" ");
@@ -345,16 +493,16 @@ public class LinearSum {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("(add ");
-		for (IntegerVariable v : coef.keySet()) {
-			long c = getA(v);
+		for (int i = 0; i < n; i++) {
+			long c = as[i];
 			if (c == 0) {
 			}else if(c == 1) {
-				sb.append(v.getName());
+				sb.append(vs[i].getName());
 			}else{
 				sb.append("(mul ");
 				sb.append(c);
 				sb.append(" ");
-				sb.append(v.getName());
+				sb.append(vs[i].getName());
 				sb.append(")");
 			}
 			sb.append(" ");
@@ -0,0 +1,15 @@
+package jp.ac.kobe_u.cs.sugar.csp;
+
+import java.util.Iterator;
+
+/**
+ * An iterator over long values which can be read without boxing.
+ * @see IntegerDomain#values(long, long)
+ */
+public interface LongIterator extends Iterator<Long> {
+	/**
+	 * Returns the next value.
+	 * @return the next value
+	 */
+	long nextLong();
+}
@@ -60,8 +60,23 @@ public class ProductLiteral extends ArithmeticLiteral {
 			assert this.v2 == v;
 			rhsd = v1.getDomain();
 		}
-		if (rhsd.contains(0) || rhsd.isEmpty())
+		if (rhsd.isEmpty() || lhsd.isEmpty())
 			return null;
+		if (rhsd.contains(0)) {
+			// v1*v2 != 0 excludes zero from the other factor
+			if (lhsd.contains(0))
+				return null;
+			final IntegerDomain neg = rhsd.bound(rhsd.getLowerBound(), -1);
+			final IntegerDomain pos = rhsd.bound(1, rhsd.getUpperBound());
+			IntegerDomain dom = null;
+			if (! neg.isEmpty())
+				dom = lhsd.div(neg);
+			if (! pos.isEmpty())
+				dom = dom == null ? lhsd.div(pos) : dom.cup(lhsd.div(pos));
+			if (dom == null)
+				return null;
+			return new long[] { dom.getLowerBound(), dom.getUpperBound() };
+		}
 
 		final IntegerDomain dom = lhsd.div(rhsd);
 		return new long[] { dom.getLowerBound(), dom.getUpperBound() };
@@ -82,6 +97,14 @@ public class ProductLiteral extends ArithmeticLiteral {
 		return d.cap(muld).isEmpty();
 	}
 
+	@Override
+	public boolean isInconsistent() throws SugarException {
+		if (v.getDomain().isEmpty() || v1.getDomain().isEmpty()
+				|| v2.getDomain().isEmpty())
+			return true;
+		return isUnsatisfiable();
+	}
+
 	@Override
 	public String toString() {
 		String s = "(product " + v.getName() + " " + v1.getName() + " " + v2.getName() + ")";
@@ -1,20 +1,79 @@
 package jp.ac.kobe_u.cs.sugar.encoder;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 import jp.ac.kobe_u.cs.sugar.SugarMain;
 
+/**
+ * CNFWriter writes SAT clauses in one of the following formats.
+ * <ul>
+ * <li>DIMACS CNF format.</li>
+ * <li>gzip compressed DIMACS CNF format.
+ * The file consists of two gzip members: the header stored without
+ * compression (so that its size is fixed) and the clauses.</li>
+ * <li>Binary format.
+ * It begins with a 24-byte header ("BCNF", version, number of variables
+ * and number of clauses as big-endian 4, 4, 8 and 8 byte integers).
+ * Each clause is the number of literals followed by the literals,
+ * all written as unsigned LEB128 varints (literals are zigzag encoded).
+ * Comments are not written.</li>
+ * </ul>
+ * The format is chosen by FORMAT, or by the file name suffix
+ * (".gz" or ".bcnf") when FORMAT is null.
+ * When USE_NEWIO is set, full buffers are handed to an I/O thread
+ * (which also compresses them) so that the encoding does not wait for the disk.
+ * The header is written with a fixed width at first,
+ * and it is overwritten by close() with the actual numbers.
+ * <p>
+ * A CNFWriter can also count the clauses without writing them,
+ * or write them to a stream (such as the standard input of a SAT solver)
+ * when the numbers in the header are known in advance.
+ * Chunk writers created by createChunk() keep the clauses in memory
+ * until they are appended to their parent by append().
+ */
 public class CNFWriter {
+	/**
+	 * Output formats.
+	 */
+	public enum Format {
+		/**
+		 * DIMACS CNF
+		 */
+		DIMACS,
+		/**
+		 * gzip compressed DIMACS CNF
+		 */
+		GZIP,
+		/**
+		 * Varint encoded binary clauses
+		 */
+		BINARY
+	}
+
 	private boolean incremental;
 	public static boolean USE_NEWIO = true;
-	public static int SAT_BUFFER_SIZE = 4*1024;
+	public static int SAT_BUFFER_SIZE = 1024*1024;
+	public static int SAT_BUFFERS = 2;
+	public static Format FORMAT = null;
+
+	private static final byte[] BINARY_MAGIC = { 'B', 'C', 'N', 'F' };
+
+	private static final int BINARY_VERSION = 1;
 
 	private BufferedOutputStream satFile;
 
@@ -25,13 +84,42 @@ public class CNFWriter {
 
 	protected ByteBuffer satByteBuffer;
 
+	private Flusher flusher;
+
+	private final byte[] digits = new byte[21];
+
+	private final Format format;
+
+	private final boolean counting;
+
+	private OutputStream stream = null;
+
+	private int streamVariablesCount;
+
+	private int streamClausesCount;
+
+	private static final int CHUNK_SIZE = 64*1024;
+
 	private int satVariablesCount = 0;
 
 	private int satClausesCount = 0;
 
 	private long satFileSize = 0;
 
-	private final String satFileName;
+	private long satFileLength = 0;
+
+	private String satFileName = null;
+
+	public static Format getFormat(String satFileName) {
+		if (FORMAT != null) {
+			return FORMAT;
+		} else if (satFileName.endsWith(".gz")) {
+			return Format.GZIP;
+		} else if (satFileName.endsWith(".bcnf")) {
+			return Format.BINARY;
+		}
+		return Format.DIMACS;
+	}
 
 	public CNFWriter(String satFileName, boolean incremental) throws IOException {
 		this.satFileName = satFileName;
@@ -39,17 +127,129 @@ public class CNFWriter {
 		satVariablesCount = 0;
 		satClausesCount = 0;
 		this.incremental = incremental;
+		format = getFormat(satFileName);
+		counting = false;
 		if (USE_NEWIO) {
-			satFileChannel = (new FileOutputStream(satFileName)).getChannel();
-			satByteBuffer = ByteBuffer.allocateDirect(SAT_BUFFER_SIZE);
+			final RandomAccessFile file = new RandomAccessFile(satFileName, "rw");
+			file.setLength(0);
+			satFileChannel = file.getChannel();
+			OutputStream out = null;
+			if (format != Format.DIMACS) {
+				final byte[] header = getHeaderBytes(0, 0);
+				satFileChannel.write(ByteBuffer.wrap(header));
+				if (format == Format.GZIP) {
+					out = new GZIPOutputStream(Channels.newOutputStream(satFileChannel),
+							SAT_BUFFER_SIZE);
+				}
+			}
+			flusher = new Flusher(satFileChannel, out);
+			flusher.start();
+			satByteBuffer = flusher.take();
 		} else {
+			if (format != Format.DIMACS) {
+				throw new IOException(format + " format requires USE_NEWIO");
+			}
 			satFile = new BufferedOutputStream(new FileOutputStream(satFileName));
 			satStringBuffer = new StringBuilder(SAT_BUFFER_SIZE);
 			satByteArray = new byte[SAT_BUFFER_SIZE];
 		}
+		if (format == Format.DIMACS) {
+			write(getHeader(0, 0));
+		} else if (format == Format.GZIP) {
+			satFileSize = getHeader(0, 0).length();
+		} else {
+			satFileSize = getHeaderBytes(0, 0).length;
+		}
+	}
+
+	/**
+	 * Creates a CNFWriter which only counts the variables, the clauses
+	 * and the size of the DIMACS CNF output.
+	 */
+	public CNFWriter() throws IOException {
+		format = Format.DIMACS;
+		counting = true;
 		write(getHeader(0, 0));
 	}
 
+	/**
+	 * Creates a CNFWriter writing to the given stream.
+	 * The same number of clauses must be written before close(),
+	 * which closes the stream.
+	 * @param out the output stream
+	 * @param numOfVariables the number of variables in the header
+	 * @param numOfClauses the number of clauses in the header
+	 */
+	public CNFWriter(OutputStream out, int numOfVariables, int numOfClauses) throws IOException {
+		format = FORMAT == null ? Format.DIMACS : FORMAT;
+		counting = false;
+		stream = out;
+		streamVariablesCount = numOfVariables;
+		streamClausesCount = numOfClauses;
+		if (format == Format.GZIP) {
+			out = new GZIPOutputStream(out, SAT_BUFFER_SIZE);
+		}
+		flusher = new Flusher(null, out);
+		flusher.start();
+		satByteBuffer = flusher.take();
+		if (format == Format.BINARY) {
+			final byte[] header = getHeaderBytes(numOfVariables, numOfClauses);
+			satByteBuffer.put(header);
+			satFileSize = header.length;
+		} else {
+			write(getHeader(numOfVariables, numOfClauses));
+		}
+	}
+
+	private CNFWriter(Format format, boolean counting) {
+		this.format = format;
+		this.counting = counting;
+		if (! counting) {
+			satByteBuffer = ByteBuffer.allocate(CHUNK_SIZE);
+		}
+	}
+
+	/**
+	 * Creates a writer keeping clauses in memory.
+	 * Its clauses are written to this writer by append().
+	 * @return the chunk writer
+	 */
+	public CNFWriter createChunk() {
+		return new CNFWriter(format == Format.BINARY ? Format.BINARY : Format.DIMACS,
+				counting);
+	}
+
+	/**
+	 * Writes the clauses kept by the chunk writer.
+	 * @param chunk the chunk writer created by createChunk()
+	 */
+	public void append(CNFWriter chunk) throws IOException {
+		if (! counting) {
+			final ByteBuffer buf = chunk.satByteBuffer;
+			buf.flip();
+			if (satByteBuffer != null) {
+				while (buf.hasRemaining()) {
+					if (! satByteBuffer.hasRemaining()) {
+						flush();
+					}
+					final int n = Math.min(buf.remaining(), satByteBuffer.remaining());
+					satByteBuffer.put(buf.array(), buf.arrayOffset() + buf.position(), n);
+					buf.position(buf.position() + n);
+				}
+			} else {
+				while (buf.hasRemaining()) {
+					if (satStringBuffer.length() >= SAT_BUFFER_SIZE) {
+						flush();
+					}
+					satStringBuffer.append((char)(buf.get() & 0xFF));
+				}
+			}
+			chunk.satByteBuffer = null;
+		}
+		satFileSize += chunk.satFileSize;
+		satClausesCount += chunk.satClausesCount;
+	}
+
 	public String getHeader(int numOfVariables, int numOfClauses) throws UnsupportedEncodingException {
 		int n = 64;
 		StringBuilder s = new StringBuilder();
@@ -64,11 +264,48 @@ public class CNFWriter {
 		return s.toString();
 	}
 
+	/**
+	 * Returns the header bytes written to the file.
+	 * Their length does not depend on the numbers.
+	 */
+	private byte[] getHeaderBytes(int numOfVariables, int numOfClauses) throws IOException {
+		if (format == Format.BINARY) {
+			final ByteBuffer buf = ByteBuffer.allocate(24);
+			buf.put(BINARY_MAGIC);
+			buf.putInt(BINARY_VERSION);
+			buf.putLong(numOfVariables);
+			buf.putLong(numOfClauses);
+			return buf.array();
+		}
+		final byte[] header = getHeader(numOfVariables, numOfClauses).getBytes();
+		if (format == Format.GZIP) {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final GZIPOutputStream out = new GZIPOutputStream(bytes) {
+				{
+					def.setLevel(Deflater.NO_COMPRESSION);
+				}
+			};
+			out.write(header);
+			out.close();
+			return bytes.toByteArray();
+		}
+		return header;
+	}
+
 	public void flush() throws IOException {
-		if (USE_NEWIO) {
+		if (counting) {
+			// nop
+		} else if (flusher != null) {
+			if (satByteBuffer.position() > 0) {
+				flusher.put(satByteBuffer);
+				satByteBuffer = flusher.take();
+			}
+		} else if (satByteBuffer != null) {
+			// chunk
+			final ByteBuffer buf = ByteBuffer.allocate(2 * satByteBuffer.capacity());
 			satByteBuffer.flip();
-			satFileChannel.write(satByteBuffer);
-			satByteBuffer.clear();
+			buf.put(satByteBuffer);
+			satByteBuffer = buf;
 		} else {
 			int n = satStringBuffer.length();
 			for (int i = 0; i < n; i++) {
@@ -80,12 +317,16 @@ public class CNFWriter {
 	}
 
 	public void write(String s) throws IOException {
-		if (USE_NEWIO) {
-			assert satByteBuffer != null: "Assertion failure";
-			if (satByteBuffer.position() + s.length() > SAT_BUFFER_SIZE) {
+		if (counting) {
+			// nop
+		} else if (satByteBuffer != null) {
+			if (satByteBuffer.remaining() < s.length()) {
 				flush();
 			}
 			for (int i = 0; i < s.length(); i++) {
+				if (! satByteBuffer.hasRemaining()) {
+					flush();
+				}
 				satByteBuffer.put((byte)s.charAt(i));
 			}
 		} else {
@@ -97,24 +338,109 @@ public class CNFWriter {
 		satFileSize += s.length();
 	}
 
-	public void writeComment(String comment) throws IOException {
-		if (SugarMain.debug >= 1) {
+	/**
+	 * Writes a literal code followed by a space.
+	 * The digits are formatted directly into the buffer without creating Strings.
+	 */
+	private void writeLiteral(long code) throws IOException {
+		if (counting) {
+			int n = code < 0 ? 3 : 2;
+			for (long x = code / 10; x != 0; x /= 10) {
+				n++;
+			}
+			satFileSize += n;
+		} else if (satByteBuffer != null) {
+			if (satByteBuffer.remaining() < digits.length) {
+				flush();
+			}
+			final boolean negative = code < 0;
+			if (negative) {
+				code = -code;
+			}
+			int i = digits.length;
+			digits[--i] = ' ';
+			do {
+				digits[--i] = (byte)('0' + (int)(code % 10));
+				code /= 10;
+			} while (code != 0);
+			if (negative) {
+				digits[--i] = '-';
+			}
+			satByteBuffer.put(digits, i, digits.length - i);
+			satFileSize += digits.length - i;
+		} else {
+			if (satStringBuffer.length() + digits.length > SAT_BUFFER_SIZE) {
+				flush();
+			}
+			final int len = satStringBuffer.length();
+			satStringBuffer.append(code);
+			satStringBuffer.append(' ');
+			satFileSize += satStringBuffer.length() - len;
+		}
+	}
+
+	/**
+	 * Writes an unsigned LEB128 varint.
+	 */
+	private void writeVarint(long x) throws IOException {
+		if (satByteBuffer.remaining() < 10) {
+			flush();
+		}
+		while ((x & ~0x7FL) != 0) {
+			satByteBuffer.put((byte)((x & 0x7F) | 0x80));
+			x >>>= 7;
+			satFileSize++;
+		}
+		satByteBuffer.put((byte)x);
+		satFileSize++;
+	}
+
+	private static void writeVarint(OutputStream out, long x) throws IOException {
+		while ((x & ~0x7FL) != 0) {
+			out.write((int)((x & 0x7F) | 0x80));
+			x >>>= 7;
+		}
+		out.write((int)x);
+	}
+
+	private static long zigzag(long code) {
+		return (code << 1) ^ (code >> 63);
+	}
+
+	/**
+	 * Writes a comment line in debug mode.
+	 * The comment is rendered by its toString() only when it is written.
+	 */
+	public void writeComment(Object comment) throws IOException {
+		if (SugarMain.debug >= 1 && format != Format.BINARY) {
 			write("c " + comment + "\n");
 		}
 	}
 
 	public void writeClause(long[] clause) throws IOException {
+		int size = 0;
 		for (long code : clause) {
 			if (code == Encoder.TRUE_CODE) {
 				return;
+			} else if (code != Encoder.FALSE_CODE) {
+				size++;
 			}
 		}
-		for (long code : clause) {
-			if (code != Encoder.FALSE_CODE) {
-				write(code + " ");
+		if (format == Format.BINARY) {
+			writeVarint(size);
+			for (long code : clause) {
+				if (code != Encoder.FALSE_CODE) {
+					writeVarint(zigzag(code));
+				}
+			}
+		} else {
+			for (long code : clause) {
+				if (code != Encoder.FALSE_CODE) {
+					writeLiteral(code);
+				}
 			}
+			write("0\n");
 		}
-		write("0\n");
 		satClausesCount++;
 	}
 
@@ -127,23 +453,100 @@ public class CNFWriter {
 	}
 
 	public void close() throws IOException {
+		if (counting) {
+			return;
+		}
 		flush();
-		if (USE_NEWIO) {
+		if (stream != null) {
+			flusher.finish();
+			stream.close();
+			stream = null;
+			satByteBuffer = null;
+			flusher = null;
+			if (satVariablesCount != streamVariablesCount
+					|| satClausesCount != streamClausesCount) {
+				throw new IOException("CNF header mismatch: p cnf "
+						+ streamVariablesCount + " " + streamClausesCount
+						+ " is declared but " + satVariablesCount + " variables and "
+						+ satClausesCount + " clauses are written");
+			}
+			return;
+		}
+		final byte[] header = getHeaderBytes(satVariablesCount, satClausesCount);
+		if (flusher != null) {
+			flusher.finish();
+			satFileLength = satFileChannel.size();
+			final ByteBuffer buf = ByteBuffer.wrap(header);
+			long position = 0;
+			while (buf.hasRemaining()) {
+				position += satFileChannel.write(buf, position);
+			}
 			satFileChannel.close();
 			satFileChannel = null;
 			satByteBuffer = null;
+			flusher = null;
 		} else {
 			satFile.close();
 			satStringBuffer = null;
 			satByteArray = null;
+			satFileLength = satFileSize;
+			final RandomAccessFile satFile1 = new RandomAccessFile(satFileName, "rw");
+			satFile1.seek(0);
+			satFile1.write(header);
+			satFile1.close();
 		}
-		RandomAccessFile satFile1 = new RandomAccessFile(satFileName, "rw");
-		satFile1.seek(0);
-		if (true) { //csp.getObjectiveVariable() == null || incremental
-			satFile1.write(getHeader(satVariablesCount, satClausesCount).getBytes());
-		} else {
-			satFile1.write(getHeader(satVariablesCount, satClausesCount+1).getBytes());
+	}
+
+	/**
+	 * Replaces the clauses appended after the closed CNF file by the given ones,
+	 * and patches the header.
+	 * @param clauses the clauses to be appended
+	 */
+	public void setExtraClauses(List<long[]> clauses) throws IOException {
+		if (satFileName == null) {
+			throw new IOException("No CNF file to append clauses");
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final OutputStream out = format == Format.GZIP ?
+			new GZIPOutputStream(bytes) : bytes;
+		int n = 0;
+		loop:
+		for (long[] clause : clauses) {
+			int size = 0;
+			for (long code : clause) {
+				if (code == Encoder.TRUE_CODE) {
+					continue loop;
+				} else if (code != Encoder.FALSE_CODE) {
+					size++;
+				}
+			}
+			if (format == Format.BINARY) {
+				writeVarint(out, size);
+				for (long code : clause) {
+					if (code != Encoder.FALSE_CODE) {
+						writeVarint(out, zigzag(code));
+					}
+				}
+			} else {
+				final StringBuilder sb = new StringBuilder();
+				for (long code : clause) {
+					if (code != Encoder.FALSE_CODE) {
+						sb.append(code);
+						sb.append(' ');
+					}
+				}
+				sb.append("0\n");
+				out.write(sb.toString().getBytes());
+			}
+			n++;
 		}
+		out.close();
+		final RandomAccessFile satFile1 = new RandomAccessFile(satFileName, "rw");
+		satFile1.setLength(satFileLength);
+		satFile1.seek(satFileLength);
+		satFile1.write(bytes.toByteArray());
+		satFile1.seek(0);
+		satFile1.write(getHeaderBytes(satVariablesCount, satClausesCount + n));
 		satFile1.close();
 	}
 
@@ -159,7 +562,117 @@ public class CNFWriter {
 		return satClausesCount;
 	}
 
+	/**
+	 * Returns the size of the uncompressed output in bytes.
+	 */
 	public long getSatFileSize() {
 		return satFileSize;
 	}
+
+	/**
+	 * Flusher is the I/O thread writing full buffers to the channel,
+	 * or to the compressing stream when it is given.
+	 * The buffers circulate between the free queue and the full queue.
+	 */
+	private static class Flusher extends Thread {
+		private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+		private final FileChannel channel;
+		private final OutputStream out;
+		private final BlockingQueue<ByteBuffer> free;
+		private final BlockingQueue<ByteBuffer> full;
+		private volatile IOException exception = null;
+
+		Flusher(FileChannel channel, OutputStream out) {
+			super("CNFWriter");
+			setDaemon(true);
+			this.channel = channel;
+			this.out = out;
+			final int n = Math.max(2, SAT_BUFFERS);
+			free = new ArrayBlockingQueue<ByteBuffer>(n);
+			full = new ArrayBlockingQueue<ByteBuffer>(n + 1);
+			for (int i = 0; i < n; i++) {
+				if (out == null) {
+					free.add(ByteBuffer.allocateDirect(SAT_BUFFER_SIZE));
+				} else {
+					free.add(ByteBuffer.allocate(SAT_BUFFER_SIZE));
+				}
+			}
+		}
+
+		private void check() throws IOException {
+			if (exception != null) {
+				throw exception;
+			}
+		}
+
+		ByteBuffer take() throws IOException {
+			try {
+				final ByteBuffer buf = free.take();
+				check();
+				return buf;
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+
+		void put(ByteBuffer buf) throws IOException {
+			buf.flip();
+			try {
+				full.put(buf);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+
+		void finish() throws IOException {
+			try {
+				full.put(EOF);
+				join();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			check();
+		}
+
+		private void write(ByteBuffer buf) throws IOException {
+			if (out == null) {
+				while (buf.hasRemaining()) {
+					channel.write(buf);
+				}
+			} else {
+				out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final ByteBuffer buf = full.take();
+					if (buf == EOF) {
+						break;
+					}
+					try {
+						if (exception == null) {
+							write(buf);
+						}
+					} catch (IOException e) {
+						exception = e;
+					}
+					buf.clear();
+					free.put(buf);
+				}
+				if (out != null && exception == null) {
+					if (out instanceof GZIPOutputStream) {
+						((GZIPOutputStream)out).finish();
+					}
+					out.flush();
+				}
+			} catch (InterruptedException e) {
+				exception = new InterruptedIOException();
+			} catch (IOException e) {
+				exception = e;
+			}
+		}
+	}
 }
@@ -1,11 +1,11 @@
 package jp.ac.kobe_u.cs.sugar.encoder;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.StreamTokenizer;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
 
 import jp.ac.kobe_u.cs.sugar.SugarException;
@@ -14,109 +14,239 @@ import jp.ac.kobe_u.cs.sugar.csp.CSP;
 import jp.ac.kobe_u.cs.sugar.csp.IntegerVariable;
 
 public abstract class Decoder {
+	public static long MAP_SIZE = 64*1024*1024;
+	private static final int BUFFER_SIZE = 1024*1024;
+
 	protected final CSP csp;
 
 	public Decoder(CSP csp) {
 		this.csp = csp;
 	}
 
-	public abstract void decode(IntegerVariable v, HashMap<Long, Boolean> satValues);
+	public abstract void decode(IntegerVariable v, BitSet satValues);
 	public abstract void decodeBigInteger(IntegerVariable v) throws SugarException;
 
-	protected void decode(BooleanVariable v, HashMap<Long, Boolean> satValues) {
-		v.setValue(satValues.get(v.getCode()));
+	protected void decode(BooleanVariable v, BitSet satValues) {
+		v.setValue(satValues.get((int)v.getCode()));
 	}
 
 	public boolean decode(String outFileName) throws SugarException, IOException {
-		String result = null;
-		boolean sat = false;
-		final BufferedReader rd = new BufferedReader(new FileReader(outFileName));
-		final StreamTokenizer st = new StreamTokenizer(rd);
-		st.resetSyntax();
-		st.whitespaceChars(0x0000, 0x0020);
-		st.wordChars('A', 'Z');
-		st.wordChars('a', 'z');
-		st.wordChars('_', '_');
-		st.wordChars('0', '9');
-		char[] chars = {
-			'+', '-', '*', '/', '%',
-				'=', '<', '>', '!', '&', '|' };
-		for (char c : chars) {
-			st.wordChars(c, c);
+		final BitSet satValues = readModel(outFileName);
+		if (satValues == null) {
+			return false;
 		}
-		st.wordChars('$', '$');
-		st.wordChars(0x000080, 0x10FFFF);
-		st.eolIsSignificant(true);
-
-		while (result == null) {
-			st.nextToken();
-			if (st.ttype == StreamTokenizer.TT_WORD) {
-				if (st.sval.equals("c")) {
-					do {
-						st.nextToken();
-					} while (st.ttype != StreamTokenizer.TT_EOL);
-				} else if (st.sval.equals("s")) {
-					st.nextToken();
-					result = st.sval;
-				} else {
-					result = st.sval;
-				}
+		decode(satValues);
+		return true;
+	}
+
+	/**
+	 * Decodes all variables of the CSP from the given SAT model.
+	 * @param satValues the SAT model returned by readModel
+	 */
+	public void decode(BitSet satValues) throws SugarException {
+		final List<IntegerVariable> bigints = new ArrayList<IntegerVariable>();
+		for (IntegerVariable v : csp.getIntegerVariables()) {
+			if (v.getDigits().length > 1) {
+				bigints.add(v);
 			} else {
-				throw new SugarException("Unknown output " + st.sval);
+				decode(v, satValues);
 			}
 		}
-		if (result.startsWith("SAT")) {
-			sat = true;
-			final HashMap<Long, Boolean> satValues = new HashMap<Long, Boolean>();
-			while (true) {
-				st.nextToken();
-				if (st.ttype == StreamTokenizer.TT_EOF)
-					break;
-				switch (st.ttype) {
-				case StreamTokenizer.TT_EOL:
-					break;
-				case StreamTokenizer.TT_WORD:
-					final String s = st.sval;
-					if (s.equals("v")) {
-					} else if (s.equals("c")) {
-						do {
-							st.nextToken();
-						} while (st.ttype != StreamTokenizer.TT_EOL);
-					} else if (s.matches("-??[0-9]+")) {
-						final long value = Long.parseLong(s);
+		for (IntegerVariable v : bigints) {
+			decodeBigInteger(v);
+		}
+		for (IntegerVariable v : csp.getIntegerVariables()) {
+			decodeRank(v);
+		}
+		for (BooleanVariable v : csp.getBooleanVariables()) {
+			decode(v, satValues);
+		}
+	}
+
+	/**
+	 * Decodes only the given variable (and its digits) from the SAT model.
+	 * @param v the integer variable
+	 * @param satValues the SAT model returned by readModel
+	 * @return the value of v
+	 */
+	public long decodeVariable(IntegerVariable v, BitSet satValues)
+	throws SugarException {
+		if (v.getDigits().length > 1) {
+			for (IntegerVariable digit : v.getDigits()) {
+				decode(digit, satValues);
+			}
+			decodeBigInteger(v);
+		} else {
+			decode(v, satValues);
+		}
+		decodeRank(v);
+		return v.getValue();
+	}
+
+	/*
+	 * Maps the rank of a variable encoded by ranks back to its value.
+	 */
+	private void decodeRank(IntegerVariable v) {
+		if (v.getRanks() != null) {
+			v.setValue(v.getRanks().valueAt(v.getValue()));
+		}
+	}
+
+	/**
+	 * Reads the output file of a SAT solver.
+	 * The file is parsed byte by byte (it is memory-mapped when it is larger
+	 * than MAP_SIZE bytes), and the positive literals are set in a BitSet
+	 * indexed by the variable codes.
+	 * @param outFileName the output file name
+	 * @return the SAT model, or null when the SAT problem is unsatisfiable
+	 */
+	public BitSet readModel(String outFileName)
+	throws SugarException, IOException {
+		final RandomAccessFile file = new RandomAccessFile(outFileName, "r");
+		try {
+			final ModelReader rd = new ModelReader(file.getChannel());
+			String result = null;
+			while (result == null) {
+				final String s = rd.nextWord();
+				if (s == null) {
+					throw new SugarException("Unknown output: no result");
+				} else if (s.equals("c")) {
+					rd.skipLine();
+				} else if (s.equals("s")) {
+					result = rd.nextWord();
+					if (result == null) {
+						throw new SugarException("Unknown output: no result");
+					}
+				} else {
+					result = s;
+				}
+			}
+			if (result.startsWith("SAT")) {
+				final BitSet satValues = new BitSet();
+				while (true) {
+					final int c = rd.skipSpaces();
+					if (c < 0) {
+						break;
+					} else if (c == '-' || ('0' <= c && c <= '9')) {
+						final long value = rd.nextLong();
 						final long i = Math.abs(value);
-						if (i > 0) {
-							satValues.put(i, value > 0);
+						if (i > Integer.MAX_VALUE) {
+							throw new SugarException("Unknown output " + value);
+						} else if (i > 0) {
+							satValues.set((int)i, value > 0);
 						}
-						break;
 					} else {
-						throw new SugarException("Unknown output " + s);
+						final String s = rd.nextWord();
+						if (s.equals("v")) {
+						} else if (s.equals("c")) {
+							rd.skipLine();
+						} else {
+							throw new SugarException("Unknown output " + s);
+						}
 					}
-					break;
-				default:
-					throw new SugarException("Unknown output " + st.sval);
 				}
+				return satValues;
+			} else if (! result.startsWith("UNSAT")) {
+				throw new SugarException("Unknown output result " + result);
 			}
-			final List<IntegerVariable> bigints = new ArrayList<IntegerVariable>();
-			for (IntegerVariable v : csp.getIntegerVariables()) {
-				if (v.getDigits().length > 1) {
-					bigints.add(v);
-				} else {
-					decode(v, satValues);
+			return null;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * ModelReader reads words and integers from the output of a SAT solver.
+	 * Bytes up to 0x20 are white spaces.
+	 */
+	private static class ModelReader {
+		private final FileChannel channel;
+		private final boolean mapped;
+		private ByteBuffer buf;
+
+		ModelReader(FileChannel channel) throws IOException {
+			this.channel = channel;
+			final long size = channel.size();
+			mapped = size > MAP_SIZE && size <= Integer.MAX_VALUE;
+			if (mapped) {
+				buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			} else {
+				buf = ByteBuffer.allocate(BUFFER_SIZE);
+				buf.flip();
+			}
+		}
+
+		/**
+		 * Returns the next byte without consuming it, or -1 at the end.
+		 */
+		private int peek() throws IOException {
+			while (! buf.hasRemaining()) {
+				if (mapped) {
+					return -1;
+				}
+				buf.clear();
+				final int n = channel.read(buf);
+				buf.flip();
+				if (n < 0) {
+					return -1;
 				}
 			}
-			for (IntegerVariable v : bigints) {
-				decodeBigInteger(v);
+			return buf.get(buf.position()) & 0xFF;
+		}
+
+		int skipSpaces() throws IOException {
+			int c;
+			while ((c = peek()) >= 0 && c <= 0x20) {
+				buf.get();
 			}
-			for (BooleanVariable v : csp.getBooleanVariables()) {
-				decode(v, satValues);
+			return c;
+		}
+
+		void skipLine() throws IOException {
+			int c;
+			while ((c = peek()) >= 0) {
+				buf.get();
+				if (c == '\n') {
+					break;
+				}
 			}
-		} else if (result.startsWith("UNSAT")) {
-			sat = false;
-		} else {
-			throw new SugarException("Unknown output result " + result);
 		}
-		rd.close();
-		return sat;
+
+		String nextWord() throws IOException {
+			if (skipSpaces() < 0) {
+				return null;
+			}
+			final StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = peek()) > 0x20) {
+				sb.append((char)c);
+				buf.get();
+			}
+			return sb.toString();
+		}
+
+		long nextLong() throws IOException, SugarException {
+			boolean negative = false;
+			if (peek() == '-') {
+				negative = true;
+				buf.get();
+			}
+			long value = 0;
+			int digits = 0;
+			int c;
+			while ((c = peek()) > 0x20) {
+				if (c < '0' || c > '9' || digits >= 18) {
+					throw new SugarException("Unknown output "
+							+ (negative ? "-" : "") + value + (char)c);
+				}
+				value = 10 * value + (c - '0');
+				digits++;
+				buf.get();
+			}
+			if (digits == 0) {
+				throw new SugarException("Unknown output " + (negative ? "-" : ""));
+			}
+			return negative ? -value : value;
+		}
 	}
 }
@@ -3,12 +3,19 @@ package jp.ac.kobe_u.cs.sugar.encoder;
 import java.io.BufferedWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import jp.ac.kobe_u.cs.sugar.Logger;
 import jp.ac.kobe_u.cs.sugar.SugarConstants;
@@ -24,6 +31,7 @@ import jp.ac.kobe_u.cs.sugar.csp.Clause;
 import jp.ac.kobe_u.cs.sugar.csp.IntegerDomain;
 import jp.ac.kobe_u.cs.sugar.csp.IntegerVariable;
 import jp.ac.kobe_u.cs.sugar.csp.LinearLiteral;
+import jp.ac.kobe_u.cs.sugar.csp.LongIterator;
 import jp.ac.kobe_u.cs.sugar.csp.Operator;
 import jp.ac.kobe_u.cs.sugar.csp.ProductLiteral;
 
@@ -32,11 +40,16 @@ import jp.ac.kobe_u.cs.sugar.csp.ProductLiteral;
  * @see CSP 
  * @author Tomoya Tanjo (tanjo@nii.ac.jp)
  */
-public abstract class Encoder {
+public abstract class Encoder implements Cloneable {
 	public static boolean simplifyAll = true;
 	public static boolean ESTIMATE_SATSIZE = false; // bad
 	public static long MAX_LINEARSUM_SIZE = 1024L;
 	public static int SPLITS = 2;
+	public static boolean OPT_COMPACT = true;
+	public static boolean OPT_RANK = false;
+	public static boolean OPT_BDD = true;
+	public static int THREADS = 1;
+	public static int CHUNK_CLAUSES = 256;
 
 	public static final long FALSE_CODE = 0;
 
@@ -46,6 +59,8 @@ public abstract class Encoder {
 
 	protected CNFWriter writer;
 
+	private CNFWriter counter = null;
+
 
 	public abstract long getCode(LinearLiteral lit) throws SugarException;
 	protected abstract void encode(IntegerVariable v) throws SugarException, IOException;
@@ -83,6 +98,14 @@ public abstract class Encoder {
 		this.csp = csp;
 	}
 
+	public CSP getCSP() {
+		return csp;
+	}
+
+	public CNFWriter getWriter() {
+		return writer;
+	}
+
 	protected long getCode(BooleanLiteral lit) throws SugarException {
 		final long code = lit.getBooleanVariable().getCode();
 		return lit.getNegative() ? -code : code;
@@ -92,7 +115,7 @@ public abstract class Encoder {
 		if (! isSimple(cl)) {
 			throw new SugarException("Cannot encode non-simple clause " + cl.toString());
 		}
-		writer.writeComment(cl.toString());
+		writer.writeComment(cl);
 		if (cl.isValid()) {
 			return;
 		}
@@ -125,18 +148,92 @@ public abstract class Encoder {
 		return 1;
 	}
 
+	/*
+	 * Returns c such that a*v <= b is decided by v <= c.
+	 */
+	protected static long threshold(long a, long b) {
+		if (a >= 0) {
+			return b >= 0 ? b/a : (b-a+1)/a;
+		} else {
+			return (b >= 0 ? b/a : (b+a+1)/a) - 1;
+		}
+	}
+
+	/*
+	 * Sparse variables occurring only in unary literals, except the objective.
+	 */
+	private Set<IntegerVariable> rankVariables() {
+		final Set<IntegerVariable> vs = new HashSet<IntegerVariable>();
+		for (IntegerVariable v : csp.getIntegerVariables()) {
+			if (! v.getDomain().isContiguous() && v != csp.getObjectiveVariable()) {
+				vs.add(v);
+			}
+		}
+		for (Clause c : csp.getClauses()) {
+			for (ArithmeticLiteral lit : c.getArithmeticLiterals()) {
+				if (! (lit instanceof LinearLiteral)
+						|| ((LinearLiteral)lit).getLinearExpression().size() > 1) {
+					vs.removeAll(lit.getVariables());
+				}
+			}
+		}
+		return vs;
+	}
+
+	/*
+	 * Translates a*x+b (op) 0 on a variable x encoded by the ranks of
+	 * its values into a literal on the rank.
+	 */
+	private LinearLiteral toRank(LinearLiteral lit) throws SugarException {
+		final LinearSum ls = lit.getLinearExpression();
+		final IntegerVariable v = ls.getVariable(0);
+		final IntegerDomain d = v.getRanks();
+		final long a = ls.getA(0);
+		final long b = ls.getB();
+		switch (lit.getOperator()) {
+		case LE:
+			return toRankLE(v, d, a, b);
+		case GE:
+			return toRankLE(v, d, -a, -b);
+		case EQ:
+		case NE:
+			if (b % a == 0 && d.contains(-b/a)) {
+				final long k = d.sizeLE(-b/a) - 1;
+				return new LinearLiteral(new LinearSum(1, v, -k), lit.getOperator());
+			}
+			return new LinearLiteral(new LinearSum(1), lit.getOperator());
+		default:
+			throw new SugarException("Internal error " + lit.toString());
+		}
+	}
+
+	/*
+	 * Translates a*x+b <= 0 into a literal on the rank of x.
+	 */
+	private LinearLiteral toRankLE(IntegerVariable v, IntegerDomain d, long a, long b) {
+		final long c = threshold(a, -b);
+		final long k = d.sizeLE(c);
+		if (a > 0) {
+			return new LinearLiteral(new LinearSum(1, v, 1-k), Operator.LE);
+		} else {
+			return new LinearLiteral(new LinearSum(-1, v, k), Operator.LE);
+		}
+	}
+
 	protected List<Clause> adjust(IntegerVariable v, boolean useOffset) throws SugarException {
 		final List<Clause> ret = new ArrayList<Clause>();
 		final IntegerDomain d = v.getDomain();
 		if (! d.isContiguous()) {
 			long lst = d.getLowerBound()-1;
-			final Iterator<Long> iter = d.values();
+			final LongIterator iter = d.values();
 			while(iter.hasNext()) {
-				final long i = iter.next();
+				final long i = iter.nextLong();
 				if (lst+2 == i) {
 					final Clause c = new Clause(new LinearLiteral(new LinearSum(1, v, -(lst+1)),
 																												Operator.NE));
-					c.setComment(v.getName() + " != " + (lst+1));
+					if (SugarMain.debug >= 1) {
+						c.setComment(v.getName() + " != " + (lst+1));
+					}
 					ret.add(c);
 				} else if (lst+1 != i) {
 					final BooleanVariable b = new BooleanVariable();
@@ -144,8 +241,10 @@ public abstract class Encoder {
 					final Clause c1 = new Clause(new LinearLiteral(new LinearSum(1, v, -lst),
 																												 Operator.LE));
 					c1.add(new BooleanLiteral(b, true));
-					c1.setComment(v.getName() + " <= " + lst + " || "
-												+ v.getName() + " >= " + i);
+					if (SugarMain.debug >= 1) {
+						c1.setComment(v.getName() + " <= " + lst + " || "
+													+ v.getName() + " >= " + i);
+					}
 					ret.add(c1);
 					final Clause c2 = new Clause(new LinearLiteral(new LinearSum(-1, v, i),
 																												 Operator.LE));
@@ -174,8 +273,18 @@ public abstract class Encoder {
 		IntegerVariable.setPrefix("A");
 		IntegerVariable.setIndex(0);
 		Logger.fine("Adjust the lower bound of integer variables to 0");
+		final Set<IntegerVariable> ranks = OPT_RANK ?
+			rankVariables() : new HashSet<IntegerVariable>();
 		for (IntegerVariable v: csp.getIntegerVariables()) {
-			csp.getClauses().addAll(adjust(v, true));
+			if (ranks.contains(v)) {
+				v.setRanks(v.getDomain());
+				v.setDomain(new IntegerDomain(0, v.getDomain().size()-1));
+			} else {
+				csp.getClauses().addAll(adjust(v, true));
+			}
+		}
+		if (! ranks.isEmpty()) {
+			Logger.fine(ranks.size() + " integer variables are encoded by ranks");
 		}
 
 		final List<Clause> newClauses = new ArrayList<Clause>();
@@ -194,9 +303,12 @@ public abstract class Encoder {
 					if (lit instanceof LinearLiteral) {
 						final LinearLiteral ll = (LinearLiteral)lit;
 						final LinearSum ls = ll.getLinearExpression();
-						for (Entry<IntegerVariable, Long> es :
-									 ls.getCoef().entrySet()) {
-							ls.setB(ls.getB()+es.getKey().getOffset()*es.getValue());
+						if (ls.size() == 1 && ls.getVariable(0).getRanks() != null) {
+							newCls.add(toRank(ll));
+							continue;
+						}
+						for (int k = 0; k < ls.size(); k++) {
+							ls.setB(ls.getB()+ls.getVariable(k).getOffset()*ls.getA(k));
 						}
 						newCls.add(new LinearLiteral(ls, ll.getOperator()));
 					} else {
@@ -290,7 +402,46 @@ public abstract class Encoder {
 	}
 
 	public void encode(String satFileName, boolean incremental) throws SugarException, IOException {
-		writer = new CNFWriter(satFileName, incremental);
+		encode(new CNFWriter(satFileName, incremental), null);
+	}
+
+	/**
+	 * Counts the SAT variables and clauses without writing them.
+	 * It is the first pass of encode(OutputStream, List).
+	 */
+	public void count() throws SugarException, IOException {
+		Logger.fine("Counting SAT clauses");
+		counter = new CNFWriter();
+		encode(counter, null);
+	}
+
+	/**
+	 * Writes the CNF to the stream with the header counted by count().
+	 * @param out the output stream, which is closed at the end
+	 * @param extraClauses the clauses appended to the CNF, or null
+	 */
+	public void encode(OutputStream out, List<long[]> extraClauses) throws SugarException, IOException {
+		if (counter == null) {
+			throw new SugarException("SAT clauses are not counted");
+		}
+		int n = counter.getSatClausesCount();
+		if (extraClauses != null) {
+			loop:
+			for (long[] clause : extraClauses) {
+				for (long code : clause) {
+					if (code == TRUE_CODE) {
+						continue loop;
+					}
+				}
+				n++;
+			}
+		}
+		encode(new CNFWriter(out, counter.getSatVariablesCount(), n), extraClauses);
+	}
+
+	private void encode(CNFWriter writer, List<long[]> extraClauses) throws SugarException, IOException {
+		final long time0 = System.currentTimeMillis();
+		this.writer = writer;
 
 		for (IntegerVariable v : csp.getIntegerVariables()) {
 			v.setCode(writer.getSatVariablesCount() + 1);
@@ -316,9 +467,26 @@ public abstract class Encoder {
 				percent += 10;
 			}
 		}
-		count = 0;
-		n = csp.getClauses().size();
-		percent = 10;
+		if (THREADS > 1 && SugarMain.debug == 0) {
+			encodeClauses(THREADS);
+		} else {
+			encodeClauses();
+		}
+		if (extraClauses != null) {
+			for (long[] clause : extraClauses) {
+				writer.writeClause(clause);
+			}
+		}
+		writer.close();
+		final long time = Math.max(1, System.currentTimeMillis() - time0);
+		Logger.fine(writer.getSatFileSize() + " bytes written in " + time + " ms ("
+				+ (writer.getSatFileSize() / 1000 / time) + " MB/s)");
+	}
+
+	private void encodeClauses() throws SugarException, IOException {
+		int count = 0;
+		final int n = csp.getClauses().size();
+		int percent = 10;
 		for (Clause c : csp.getClauses()) {
 			final int satClausesCount0 = writer.getSatClausesCount();
 			if (! c.isValid()) {
@@ -337,7 +505,76 @@ public abstract class Encoder {
 			}
 		}
 		Logger.fine(count + " CSP clauses encoded");
-		writer.close();
+	}
+
+	/**
+	 * Encodes the clauses by worker threads.
+	 * Each task encodes CHUNK_CLAUSES clauses by a copy of this encoder
+	 * into a chunk writer, and the chunks are appended in the order of
+	 * the clauses, so the output does not depend on the number of threads.
+	 */
+	private void encodeClauses(int threads) throws SugarException, IOException {
+		final List<Clause> clauses = csp.getClauses();
+		final int n = clauses.size();
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final LinkedList<Future<CNFWriter>> futures = new LinkedList<Future<CNFWriter>>();
+		int count = 0;
+		int percent = 10;
+		try {
+			int from = 0;
+			while (from < n || ! futures.isEmpty()) {
+				while (from < n && futures.size() < 2 * threads) {
+					final int to = Math.min(n, from + CHUNK_CLAUSES);
+					futures.add(pool.submit(createTask(clauses.subList(from, to))));
+					from = to;
+				}
+				writer.append(futures.removeFirst().get());
+				count = Math.min(n, count + CHUNK_CLAUSES);
+				if ((100L*count)/n >= percent) {
+					Logger.fine(count + " (" + percent + "%) "
+							+ "CSP clauses are encoded"
+							+ " (" + writer.getSatClausesCount() + " clauses, " + writer.getSatFileSize() + " bytes)");
+					while ((100L*count)/n >= percent) {
+						percent += 10;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new SugarException("Encoding interrupted");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof SugarException) {
+				throw (SugarException)cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException)cause;
+			} else if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new RuntimeException(cause);
+		} finally {
+			pool.shutdownNow();
+		}
+		Logger.fine(n + " CSP clauses encoded by " + threads + " threads");
+	}
+
+	private Callable<CNFWriter> createTask(final List<Clause> clauses) {
+		return new Callable<CNFWriter>() {
+			public CNFWriter call() throws SugarException, IOException {
+				final Encoder worker;
+				try {
+					worker = (Encoder)Encoder.this.clone();
+				} catch (CloneNotSupportedException e) {
+					throw new SugarException(e.getMessage());
+				}
+				worker.writer = writer.createChunk();
+				for (Clause c : clauses) {
+					if (! c.isValid()) {
+						worker.encode(c);
+					}
+				}
+				return worker.writer;
+			}
+		};
 	}
 
 	public void outputMap(String mapFileName) throws SugarException, IOException {
@@ -381,6 +618,15 @@ public abstract class Encoder {
 				v.getDomain().appendValues(sb);
 				mapWriter.write(sb.toString());
 				mapWriter.write('\n');
+			} else {
+				continue;
+			}
+			if (v.getRanks() != null) {
+				final StringBuilder sb = new StringBuilder();
+				sb.append("rank " + v.getName() + " ");
+				v.getRanks().appendValues(sb);
+				mapWriter.write(sb.toString());
+				mapWriter.write('\n');
 			}
 		}
 
@@ -4,10 +4,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map.Entry;
 
 import jp.ac.kobe_u.cs.sugar.Logger;
 import jp.ac.kobe_u.cs.sugar.SugarException;
+import jp.ac.kobe_u.cs.sugar.SugarMain;
 import jp.ac.kobe_u.cs.sugar.csp.ArithmeticLiteral;
 import jp.ac.kobe_u.cs.sugar.csp.BooleanLiteral;
 import jp.ac.kobe_u.cs.sugar.csp.BooleanVariable;
@@ -151,14 +151,16 @@ public class COEEncoder extends OEEncoder {
 			final Clause c = csp.getClauses().get(i);
 			csp.getClauses().set(i, null);
 			if (c.getArithmeticLiterals().size() == 0) {
-				c.setComment(c.toString());
+				if (SugarMain.debug >= 1) {
+					c.setComment(c.toString());
+				}
 				newClauses.add(c);
 			} else {
 				final Clause cls = new Clause(c.getBooleanLiterals());
-				if (c.getComment() == null) {
-					cls.setComment(c.toString());
-				} else {
+				if (c.getComment() != null) {
 					cls.setComment(c.getComment());
+				} else if (SugarMain.debug >= 1) {
+					cls.setComment(c.toString());
 				}
 
 				for (ArithmeticLiteral al: c.getArithmeticLiterals()) {
@@ -168,10 +170,10 @@ public class COEEncoder extends OEEncoder {
 						if (ll.getOperator() == Operator.EQ
 								&& ls.size() == 2 && ls.getB() == 0) {
 							// Special case: ax-by == 0
-							final IntegerVariable v1 = ls.getCoef().firstKey();
-							final IntegerVariable v2 = ls.getCoef().lastKey();
-							final long c1 = ls.getA(v1);
-							final long c2 = ls.getA(v2);
+							final IntegerVariable v1 = ls.getVariable(0);
+							final IntegerVariable v2 = ls.getVariable(1);
+							final long c1 = ls.getA(0);
+							final long c2 = ls.getA(1);
 							if (c1*c2 < 0) {
 								IntegerVariable lhs = Math.abs(c1)<Math.abs(c2) ? v1 : v2;
 								final IntegerVariable rhs = Math.abs(c1)<Math.abs(c2) ? v2 : v1;
@@ -192,8 +194,8 @@ public class COEEncoder extends OEEncoder {
 							}
 						} else if (ll.getOperator() == Operator.EQ && ls.size() == 1) {
 							// Special case: ax-b = 0
-							final IntegerVariable x = ls.getCoef().firstKey();
-							long a = ls.getA(x);
+							final IntegerVariable x = ls.getVariable(0);
+							long a = ls.getA(0);
 							long b = ls.getB();
 							if (a*b <= 0) {
 								a = Math.abs(a);
@@ -211,10 +213,9 @@ public class COEEncoder extends OEEncoder {
 							lhs = new LinearSum(0);
 							rhs = new LinearSum(-ls.getB());
 						}
-						for (Entry<IntegerVariable, Long> es :
-									 ls.getCoef().entrySet()) {
-							long a = es.getValue();
-							final IntegerVariable v = es.getKey();
+						for (int k = 0; k < ls.size(); k++) {
+							long a = ls.getA(k);
+							final IntegerVariable v = ls.getVariable(k);
 							if (a == 1) {
 								lhs.setA(1, v);
 								continue;
@@ -229,7 +230,7 @@ public class COEEncoder extends OEEncoder {
 							csp.add(av);
 							final Literal lit = new EqMul(av, a, v);
 							newClauses.add(new Clause(lit));
-							if (es.getValue() > 0) {
+							if (ls.getA(k) > 0) {
 								lhs.add(new LinearSum(av));
 							} else {
 								rhs.add(new LinearSum(av));
@@ -417,7 +418,9 @@ public class COEEncoder extends OEEncoder {
 			ei = simplifyToTernary(ei, clss);
 			if (ei.size() > 1) {
 				final IntegerVariable v = new IntegerVariable(ei.getDomain());
-				v.setComment(v.getName() + " : " + ei);
+				if (SugarMain.debug >= 1) {
+					v.setComment(v.getName() + " : " + ei);
+				}
 				csp.add(v);
 				clss.addAll(adjust(v, false));
 				// v == ei
@@ -425,7 +428,9 @@ public class COEEncoder extends OEEncoder {
 				ls.subtract(ei);
 				final LinearLiteral ll = new LinearLiteral(ls, Operator.EQ);
 				final Clause cls = new Clause(ll);
-				cls.setComment(v.getName() + " == " + ei);
+				if (SugarMain.debug >= 1) {
+					cls.setComment(v.getName() + " == " + ei);
+				}
 				clss.add(cls);
 				ei = new LinearSum(v);
 			}
@@ -442,7 +447,9 @@ public class COEEncoder extends OEEncoder {
 			ei = simplifyToTernary(ei, clss);
 			if (ei.size() > 1) {
 				final IntegerVariable v = new IntegerVariable(ei.getDomain());
-				v.setComment(v.getName() + " : " + ei);
+				if (SugarMain.debug >= 1) {
+					v.setComment(v.getName() + " : " + ei);
+				}
 				csp.add(v);
 				clss.addAll(adjust(v, false));
 				// v == ei
@@ -450,7 +457,9 @@ public class COEEncoder extends OEEncoder {
 				ls.subtract(ei);
 				final LinearLiteral ll = new LinearLiteral(ls, Operator.EQ);
 				final Clause cls = new Clause(ll);
-				cls.setComment(v.getName() + " == " + ei);
+				if (SugarMain.debug >= 1) {
+					cls.setComment(v.getName() + " == " + ei);
+				}
 				clss.add(cls);
 				ei = new LinearSum(v);
 			}
@@ -487,7 +496,9 @@ public class COEEncoder extends OEEncoder {
 		final Literal lit0 = new OpAdd(Operator.EQ, new IntegerHolder(w0),
 																	 v0, v1);
 		final Clause cls0 = new Clause(lit0);
-		cls0.setComment(w0.getName() + " == " + v0 + " + " + v1);
+		if (SugarMain.debug >= 1) {
+			cls0.setComment(w0.getName() + " == " + v0 + " + " + v1);
+		}
 		clss.add(cls0);
 
 		if (holders.size() == 2) {
@@ -510,7 +521,9 @@ public class COEEncoder extends OEEncoder {
 			final Literal lit1 = new OpAdd(Operator.EQ, new IntegerHolder(w1),
 																		 v2, v3);
 			final Clause cls1 = new Clause(lit1);
-			cls1.setComment(w1.getName() + " == " + v2 + " + " + v3);
+			if (SugarMain.debug >= 1) {
+				cls1.setComment(w1.getName() + " == " + v2 + " + " + v3);
+			}
 			clss.add(cls1);
 
 			final LinearSum ret = new LinearSum(w0);
@@ -532,7 +545,7 @@ public class COEEncoder extends OEEncoder {
 		assert (e.size() == 1 && e.getB() == 0)
 			|| (e.size() == 0 && e.getB() >= 0);
 		if (e.size() == 1) {
-			return new IntegerHolder(e.getCoef().firstKey());
+			return new IntegerHolder(e.getVariable(0));
 		} else {
 			return new IntegerHolder(e.getB());
 		}
@@ -6,6 +6,7 @@ import java.util.Set;
 import java.util.TreeSet;
 
 import jp.ac.kobe_u.cs.sugar.SugarException;
+import jp.ac.kobe_u.cs.sugar.SugarMain;
 import jp.ac.kobe_u.cs.sugar.csp.Clause;
 import jp.ac.kobe_u.cs.sugar.csp.CSP;
 import jp.ac.kobe_u.cs.sugar.csp.IntegerDomain;
@@ -209,7 +210,7 @@ public class EqMul extends RCSPLiteral {
 				}
 			}
 		}
-		if (!ret.isEmpty()) {
+		if (!ret.isEmpty() && SugarMain.debug >= 1) {
 			ret.get(0).setComment(toString());
 		}
 		return ret;
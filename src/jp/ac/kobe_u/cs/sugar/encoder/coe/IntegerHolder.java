@@ -88,7 +88,9 @@ public class IntegerHolder implements Comparable<IntegerHolder>{
 		final long ub2 = v.isConstant_ ? v.constant : v.variable.getDomain().getUpperBound();
 		if (ub1 != ub2)
 			return ub1 < ub2 ? -1 : 1;
-		return this.toString().compareTo(v.toString());
+		if (isConstant_ || v.isConstant_)
+			return isConstant_ == v.isConstant_ ? 0 : isConstant_ ? -1 : 1;
+		return variable.compareTo(v.variable);
 	}
 
 		@Override
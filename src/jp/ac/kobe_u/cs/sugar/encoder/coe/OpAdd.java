@@ -6,6 +6,7 @@ import java.util.Set;
 import java.util.TreeSet;
 
 import jp.ac.kobe_u.cs.sugar.SugarException;
+import jp.ac.kobe_u.cs.sugar.SugarMain;
 import jp.ac.kobe_u.cs.sugar.csp.BooleanLiteral;
 import jp.ac.kobe_u.cs.sugar.csp.BooleanVariable;
 import jp.ac.kobe_u.cs.sugar.csp.Clause;
@@ -71,7 +72,9 @@ public class OpAdd extends RCSPLiteral {
 		final IntegerVariable[] c = new IntegerVariable[m];
 		for (int i=1; i<m; i++) {
 			c[i] = new IntegerVariable(new IntegerDomain(0, 1));
-			c[i].setComment(i + "-th carry for " + toString());
+			if (SugarMain.debug >= 1) {
+				c[i].setComment(i + "-th carry for " + toString());
+			}
 			csp.add(c[i]);
 		}
 
@@ -210,7 +213,7 @@ public class OpAdd extends RCSPLiteral {
 		default:
 			throw new SugarException("Internal Error");
 		}
-		if (!ret.isEmpty()) {
+		if (!ret.isEmpty() && SugarMain.debug >= 1) {
 			ret.get(0).setComment(toString());
 		}
 		return ret;
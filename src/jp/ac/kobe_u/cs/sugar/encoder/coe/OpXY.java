@@ -6,6 +6,7 @@ import java.util.Set;
 import java.util.TreeSet;
 
 import jp.ac.kobe_u.cs.sugar.SugarException;
+import jp.ac.kobe_u.cs.sugar.SugarMain;
 import jp.ac.kobe_u.cs.sugar.csp.BooleanLiteral;
 import jp.ac.kobe_u.cs.sugar.csp.BooleanVariable;
 import jp.ac.kobe_u.cs.sugar.csp.Clause;
@@ -131,7 +132,7 @@ public class OpXY extends RCSPLiteral {
 			throw new SugarException("Internal Error");
 		}
 
-		if (!ret.isEmpty()) {
+		if (!ret.isEmpty() && SugarMain.debug >= 1) {
 			ret.get(0).setComment(toString());
 		}
 		return ret;
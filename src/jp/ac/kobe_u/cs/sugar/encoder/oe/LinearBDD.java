@@ -0,0 +1,239 @@
+package jp.ac.kobe_u.cs.sugar.encoder.oe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jp.ac.kobe_u.cs.sugar.SugarException;
+import jp.ac.kobe_u.cs.sugar.csp.BooleanLiteral;
+import jp.ac.kobe_u.cs.sugar.csp.BooleanVariable;
+import jp.ac.kobe_u.cs.sugar.csp.CSP;
+import jp.ac.kobe_u.cs.sugar.csp.Clause;
+import jp.ac.kobe_u.cs.sugar.csp.IntegerDomain;
+import jp.ac.kobe_u.cs.sugar.csp.IntegerVariable;
+import jp.ac.kobe_u.cs.sugar.csp.LinearSum;
+import jp.ac.kobe_u.cs.sugar.csp.LinearLiteral;
+import jp.ac.kobe_u.cs.sugar.csp.Literal;
+import jp.ac.kobe_u.cs.sugar.csp.Operator;
+
+/**
+ * This class builds a reduced ordered decision diagram of a linear
+ * constraint a1*x1+...+an*xn+b &lt;= 0 over the order literals.
+ * A node at level i stands for "ai*xi+...+an*xn &lt;= k", and the set of
+ * k giving the same node is an interval, which is memoized per level.
+ * A node is encoded by an aux boolean variable n with the clauses
+ * "!n || xi &lt;= c-1 || child(k-ai*c)" for the values c where the child
+ * changes (a one-sided Tseitin encoding).
+ * @see OEEncoder
+ */
+class LinearBDD {
+	private static final int TRUE = 0;
+	private static final int FALSE = 1;
+	private static final int ALIAS = 2;
+	private static final int NODE = 3;
+
+	private static class Node {
+		final int type;
+		final long lo;
+		final long hi;
+		List<Edge> edges;
+		Literal literal = null;
+
+		Node(int type, long lo, long hi) {
+			this.type = type;
+			this.lo = lo;
+			this.hi = hi;
+		}
+	}
+
+	/*
+	 * The clause "!node || order || child", where null order or FALSE
+	 * child is omitted.
+	 */
+	private static class Edge {
+		final LinearLiteral order;
+		final Node child;
+
+		Edge(LinearLiteral order, Node child) {
+			this.order = order;
+			this.child = child;
+		}
+	}
+
+	private final IntegerVariable[] vs;
+	private final long[] as;
+	private final long[][] values;
+	private final Node[] trueNodes;
+	private final Node[] falseNodes;
+	private final List<TreeMap<Long,Node>> memo;
+	private final long limit;
+	private long size = 0;
+	private long steps = 0;
+	private Node root;
+
+	/**
+	 * Builds the diagram of ls &lt;= 0 unless it needs more than limit
+	 * clauses or 8*limit visits of children.
+	 */
+	LinearBDD(final LinearSum ls, long limit) {
+		final int n = ls.size();
+		this.limit = limit;
+		vs = ls.getVariablesSorted();
+		Arrays.sort(vs, new Comparator<IntegerVariable>() {
+			public int compare(IntegerVariable v1, IntegerVariable v2) {
+				final long a1 = Math.abs(ls.getA(v1));
+				final long a2 = Math.abs(ls.getA(v2));
+				return a1 > a2 ? -1 : a1 < a2 ? 1 : 0;
+			}
+		});
+		as = new long[n];
+		values = new long[n][];
+		for (int i = 0; i < n; i++) {
+			as[i] = ls.getA(vs[i]);
+			values[i] = vs[i].getDomain().toArray();
+		}
+		trueNodes = new Node[n + 1];
+		falseNodes = new Node[n + 1];
+		long min = 0;
+		long max = 0;
+		for (int i = n; i >= 0; i--) {
+			if (i < n) {
+				final IntegerDomain d = vs[i].getDomain();
+				if (as[i] > 0) {
+					min += as[i] * d.getLowerBound();
+					max += as[i] * d.getUpperBound();
+				} else {
+					min += as[i] * d.getUpperBound();
+					max += as[i] * d.getLowerBound();
+				}
+			}
+			trueNodes[i] = new Node(TRUE, max, Long.MAX_VALUE);
+			falseNodes[i] = new Node(FALSE, Long.MIN_VALUE, min - 1);
+		}
+		memo = new ArrayList<TreeMap<Long,Node>>();
+		for (int i = 0; i < n; i++) {
+			memo.add(new TreeMap<Long,Node>());
+		}
+		root = build(0, - ls.getB());
+	}
+
+	/**
+	 * Returns the number of clauses, or -1 when the limit is exceeded.
+	 */
+	long size() {
+		return root == null ? -1 : size;
+	}
+
+	private static long shift(long x, long d) {
+		if (x == Long.MIN_VALUE || x == Long.MAX_VALUE)
+			return x;
+		return x + d;
+	}
+
+	private Node build(int i, long k) {
+		if (k >= trueNodes[i].lo)
+			return trueNodes[i];
+		if (k <= falseNodes[i].hi)
+			return falseNodes[i];
+		final Map.Entry<Long,Node> e = memo.get(i).floorEntry(k);
+		if (e != null && k <= e.getValue().hi)
+			return e.getValue();
+		final IntegerVariable v = vs[i];
+		final long a = as[i];
+		final long[] values = this.values[i];
+		long lo = Long.MIN_VALUE;
+		long hi = Long.MAX_VALUE;
+		final List<Edge> edges = new ArrayList<Edge>();
+		Node last = null;
+		for (int j = 0; j < values.length; j++) {
+			// a > 0: v >= c -> child, a < 0: v <= c -> child
+			final long c = a > 0 ? values[j] : values[values.length - 1 - j];
+			if (++steps > 8*limit)
+				return null;
+			final Node child = build(i + 1, k - a*c);
+			if (child == null)
+				return null;
+			lo = Math.max(lo, shift(child.lo, a*c));
+			hi = Math.min(hi, shift(child.hi, a*c));
+			if (child == last || child.type == TRUE)
+				continue;
+			last = child;
+			LinearLiteral order = null;
+			if (j > 0) {
+				order = a > 0 ?
+					new LinearLiteral(new LinearSum(1, v, -(c-1)), Operator.LE) :
+					new LinearLiteral(new LinearSum(-1, v, c+1), Operator.LE);
+			}
+			edges.add(new Edge(order, child));
+		}
+		final Node node;
+		if (edges.size() == 1 && (edges.get(0).order == null
+				|| edges.get(0).child.type == FALSE)) {
+			node = new Node(ALIAS, lo, hi);
+		} else {
+			node = new Node(NODE, lo, hi);
+			size += edges.size();
+			if (size > limit)
+				return null;
+		}
+		node.edges = edges;
+		memo.get(i).put(lo, node);
+		return node;
+	}
+
+	/*
+	 * Returns the literal standing for the node, creating its aux
+	 * variable and adding it to the stack when it is new.
+	 */
+	private Literal literal(Node node, CSP csp, List<Node> stack)
+	throws SugarException {
+		if (node.literal == null) {
+			if (node.type == ALIAS) {
+				final Edge edge = node.edges.get(0);
+				node.literal = edge.order != null ? edge.order : literal(edge.child, csp, stack);
+			} else {
+				final BooleanVariable b = new BooleanVariable();
+				csp.add(b);
+				node.literal = new BooleanLiteral(b, false);
+				stack.add(node);
+			}
+		}
+		return node.literal;
+	}
+
+	/**
+	 * Adds the clauses of the nodes to the CSP, and returns the literal
+	 * replacing the linear literal, or null when the root is constant.
+	 */
+	Literal encode(CSP csp, List<Clause> clauses) throws SugarException {
+		if (root.type == TRUE || root.type == FALSE)
+			return null;
+		final List<Node> stack = new ArrayList<Node>();
+		final Literal lit = literal(root, csp, stack);
+		while (! stack.isEmpty()) {
+			final Node node = stack.remove(stack.size() - 1);
+			final BooleanVariable b = ((BooleanLiteral)node.literal).getBooleanVariable();
+			for (Edge edge : node.edges) {
+				final Clause c = new Clause(new BooleanLiteral(b, true));
+				if (edge.order != null) {
+					c.add(edge.order);
+				}
+				if (edge.child.type != FALSE) {
+					c.add(literal(edge.child, csp, stack));
+				}
+				clauses.add(c);
+			}
+		}
+		return lit;
+	}
+
+	/**
+	 * Returns true when the root is the constant true.
+	 */
+	boolean isValid() {
+		return root.type == TRUE;
+	}
+}
@@ -1,6 +1,6 @@
 package jp.ac.kobe_u.cs.sugar.encoder.oe;
 
-import java.util.HashMap;
+import java.util.BitSet;
 
 import jp.ac.kobe_u.cs.sugar.SugarException;
 import jp.ac.kobe_u.cs.sugar.csp.CSP;
@@ -14,21 +14,16 @@ public class OEDecoder extends Decoder {
 	}
 
 	@Override
-	public void decode(IntegerVariable v, HashMap<Long, Boolean> satValues) {
+	public void decode(IntegerVariable v, BitSet satValues) {
 		assert v.getDigits().length <= 1;
 		final IntegerDomain domain = v.getDomain();
-		final long lb = domain.getLowerBound();
-		final long ub = domain.getUpperBound();
-		long code = v.getCode();
-		v.setValue(ub);
-		for (long c = lb; c < ub; c++) {
-			if (domain.contains(c)) {
-				if (satValues.get(code)) {
-					v.setValue(c);
-					break;
-				}
-				code++;
-			}
+		final int code = (int)v.getCode();
+		// The first true literal "v <= a" gives the value
+		final int next = satValues.nextSetBit(code);
+		if (next >= 0 && next - code < domain.size() - 1) {
+			v.setValue(domain.valueAt(next - code));
+		} else {
+			v.setValue(domain.getUpperBound());
 		}
 		v.setValue(v.getValue()+v.getOffset());
 	}
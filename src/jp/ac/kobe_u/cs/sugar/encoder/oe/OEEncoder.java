@@ -2,11 +2,15 @@ package jp.ac.kobe_u.cs.sugar.encoder.oe;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import jp.ac.kobe_u.cs.sugar.Logger;
 import jp.ac.kobe_u.cs.sugar.SugarException;
+import jp.ac.kobe_u.cs.sugar.SugarMain;
 import jp.ac.kobe_u.cs.sugar.csp.ArithmeticLiteral;
 import jp.ac.kobe_u.cs.sugar.csp.BooleanLiteral;
 import jp.ac.kobe_u.cs.sugar.csp.BooleanVariable;
@@ -17,6 +21,7 @@ import jp.ac.kobe_u.cs.sugar.csp.IntegerDomain;
 import jp.ac.kobe_u.cs.sugar.csp.IntegerVariable;
 import jp.ac.kobe_u.cs.sugar.csp.LinearLiteral;
 import jp.ac.kobe_u.cs.sugar.csp.LinearSum;
+import jp.ac.kobe_u.cs.sugar.csp.LongIterator;
 import jp.ac.kobe_u.cs.sugar.csp.Literal;
 import jp.ac.kobe_u.cs.sugar.csp.Operator;
 import jp.ac.kobe_u.cs.sugar.encoder.Encoder;
@@ -27,6 +32,9 @@ import jp.ac.kobe_u.cs.sugar.encoder.Encoder;
  * @author Tomoya Tanjo (tanjo@nii.ac.jp)
  */
 public class OEEncoder extends Encoder {
+	// decision diagrams built by split for toBDD
+	private final Map<LinearSum,LinearBDD> bdds = new HashMap<LinearSum,LinearBDD>();
+
 	public OEEncoder(CSP csp) {
 		super(csp);
 	}
@@ -37,7 +45,7 @@ public class OEEncoder extends Encoder {
 			return true;
 		else if (lit instanceof LinearLiteral) {
 			final LinearLiteral l = (LinearLiteral)lit;
-			return l.getLinearExpression().getCoef().size() <= 1
+			return l.getLinearExpression().size() <= 1
 				&& (l.getOperator() == Operator.LE
 						|| l.getOperator() == Operator.GE);
 		}
@@ -59,7 +67,7 @@ public class OEEncoder extends Encoder {
 		if (ls.size() == 0) {
 			code = (b <= 0) ? TRUE_CODE : FALSE_CODE;
 		} else {
-			final IntegerVariable v = ls.getCoef().firstKey();
+			final IntegerVariable v = ls.getVariable(0);
 			final long a = ls.getA(v);
 			code = getCodeLE(v, a, -b);
 		}
@@ -84,23 +92,23 @@ public class OEEncoder extends Encoder {
 		if (d.isContiguous()) {
 			return value - d.getLowerBound() + 1;
 		} else {
-			return d.headSet(value + 1).size();
+			return d.sizeLE(value);
 		}
 	}
 
 	@Override
 	protected void encode(IntegerVariable v) throws SugarException, IOException {
-		writer.writeComment(v.toString());
+		writer.writeComment(v);
 		final IntegerDomain domain = v.getDomain();
 		final long[] clause = new long[2];
-		long a0 = domain.getLowerBound();
-		for (long a = a0 + 1; a <= domain.getUpperBound(); a++) {
-			if (domain.contains(a)) {
-				clause[0] = negateCode(getCodeLE(v, a0));
-				clause[1] = getCodeLE(v, a);
-				writer.writeClause(clause);
-				a0 = a;
-			}
+		final LongIterator iter = domain.values();
+		long a0 = iter.nextLong();
+		while (iter.hasNext()) {
+			final long a = iter.nextLong();
+			clause[0] = negateCode(getCodeLE(v, a0));
+			clause[1] = getCodeLE(v, a);
+			writer.writeClause(clause);
+			a0 = a;
 		}
 	}
 
@@ -143,9 +151,9 @@ public class OEEncoder extends Encoder {
 					ub = Math.min(ub, (-lb0-a+1)/a);
 				}
 				// XXX
-				final Iterator<Long> iter = domain.values(lb, ub);
+				final LongIterator iter = domain.values(lb, ub);
 				while (iter.hasNext()) {
-					final long c = iter.next();
+					final long c = iter.nextLong();
 					// vs[i]>=c -> ...
 					// encoder.writeComment(vs[i].getName() + " <= " + (c-1));
 					clause[i] = getCodeLE(vs[i], c - 1);
@@ -163,9 +171,9 @@ public class OEEncoder extends Encoder {
 				// XXX
 				clause[i] = negateCode(getCodeLE(vs[i], lb - 1));
 				encode(ls, vs, i+1, s+a*(lb-1), clause);
-				Iterator<Long> iter = domain.values(lb, ub);
+				final LongIterator iter = domain.values(lb, ub);
 				while (iter.hasNext()) {
-					final long c = iter.next();
+					final long c = iter.nextLong();
 					// vs[i]<=c -> ...
 					clause[i] = negateCode(getCodeLE(vs[i], c));
 					encode(ls, vs, i+1, s+a*c, clause);
@@ -174,6 +182,57 @@ public class OEEncoder extends Encoder {
 		}
 	}
 
+	/*
+	 * encode(ls, vs, 0, b, clause) for two variables in one loop.
+	 * The clauses are the same and written in the same order.
+	 */
+	private void encode2(LinearSum ls, IntegerVariable[] vs, long[] clause)
+		throws IOException, SugarException {
+		final IntegerVariable x = vs[0];
+		final IntegerVariable y = vs[1];
+		final long a = ls.getA(x);
+		final long ay = ls.getA(y);
+		final long s = ls.getB();
+		final IntegerDomain dy = y.getDomain();
+		final long lb0 = s + ay * (ay > 0 ? dy.getLowerBound() : dy.getUpperBound());
+		final IntegerDomain domain = x.getDomain();
+		long lb = domain.getLowerBound();
+		long ub = domain.getUpperBound();
+		if (a >= 0) {
+			if (-lb0 >= 0) {
+				ub = Math.min(ub, -lb0/a);
+			} else {
+				ub = Math.min(ub, (-lb0-a+1)/a);
+			}
+			final LongIterator iter = domain.values(lb, ub);
+			while (iter.hasNext()) {
+				final long c = iter.nextLong();
+				clause[0] = getCodeLE(x, c - 1);
+				clause[1] = getCodeLE(y, ay, -(s+a*c));
+				writer.writeClause(clause);
+			}
+			clause[0] = getCodeLE(x, ub);
+			clause[1] = getCodeLE(y, ay, -(s+a*(ub+1)));
+			writer.writeClause(clause);
+		} else {
+			if (-lb0 >= 0) {
+				lb = Math.max(lb, -lb0/a);
+			} else {
+				lb = Math.max(lb, (-lb0+a+1)/a);
+			}
+			clause[0] = negateCode(getCodeLE(x, lb - 1));
+			clause[1] = getCodeLE(y, ay, -(s+a*(lb-1)));
+			writer.writeClause(clause);
+			final LongIterator iter = domain.values(lb, ub);
+			while (iter.hasNext()) {
+				final long c = iter.nextLong();
+				clause[0] = negateCode(getCodeLE(x, c));
+				clause[1] = getCodeLE(y, ay, -(s+a*c));
+				writer.writeClause(clause);
+			}
+		}
+	}
+
 	@Override
 	protected void encode(LinearLiteral lit, long[] clause) throws SugarException, IOException {
 		if (lit.getOperator() == Operator.EQ
@@ -190,7 +249,11 @@ public class OEEncoder extends Encoder {
 			final IntegerVariable[] vs = lit.getLinearExpression().getVariablesSorted();
 			final int n = ls.size();
 			clause = expand(clause, n);
-			encode(ls, vs, 0, lit.getLinearExpression().getB(), clause);
+			if (n == 2) {
+				encode2(ls, vs, clause);
+			} else {
+				encode(ls, vs, 0, lit.getLinearExpression().getB(), clause);
+			}
 		}
 	}
 
@@ -219,8 +282,59 @@ public class OEEncoder extends Encoder {
 		return code;
 	}
 
+	private static boolean hasUnitCoefficients(LinearSum ls) {
+		for (int i = 0; i < ls.size(); i++) {
+			if (Math.abs(ls.getA(i)) != 1)
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Counts the clauses written by encode(LinearSum, ...), which drops
+	 * the clauses containing a true literal, up to limit+1.
+	 */
+	private long countClauses(LinearSum ls, IntegerVariable[] vs, int i, long s, long limit) {
+		final IntegerDomain domain = vs[i].getDomain();
+		final long a = ls.getA(vs[i]);
+		if (i >= vs.length - 1) {
+			final long c = threshold(a, -s);
+			return (a >= 0 ? c >= domain.getUpperBound() : c < domain.getLowerBound()) ? 0 : 1;
+		}
+		long lb0 = s;
+		for (int j = i + 1; j < vs.length; j++) {
+			final long aj = ls.getA(vs[j]);
+			lb0 += aj * (aj > 0 ? vs[j].getDomain().getLowerBound() : vs[j].getDomain().getUpperBound());
+		}
+		long lb = domain.getLowerBound();
+		long ub = domain.getUpperBound();
+		long count = 0;
+		if (a >= 0) {
+			ub = Math.min(ub, -lb0 >= 0 ? -lb0/a : (-lb0-a+1)/a);
+			final LongIterator iter = domain.values(lb, ub);
+			while (iter.hasNext() && count <= limit) {
+				final long c = iter.nextLong();
+				count += countClauses(ls, vs, i+1, s+a*c, limit - count);
+			}
+			if (ub < domain.getUpperBound() && count <= limit) {
+				count += countClauses(ls, vs, i+1, s+a*(ub+1), limit - count);
+			}
+		} else {
+			lb = Math.max(lb, -lb0 >= 0 ? -lb0/a : (-lb0+a+1)/a);
+			if (lb > domain.getLowerBound()) {
+				count += countClauses(ls, vs, i+1, s+a*(lb-1), limit);
+			}
+			final LongIterator iter = domain.values(lb, ub);
+			while (iter.hasNext() && count <= limit) {
+				final long c = iter.nextLong();
+				count += countClauses(ls, vs, i+1, s+a*c, limit - count);
+			}
+		}
+		return count;
+	}
+
 	private boolean satSizeLE(LinearSum sum, long limit) throws SugarException {
-		if (sum.getCoef().size() <= 1) {
+		if (sum.size() <= 1) {
 			return 1 <= limit;
 		} else {
 			IntegerVariable[] vs = sum.getVariablesSorted();
@@ -257,9 +371,9 @@ public class OEEncoder extends Encoder {
 				} else {
 					ub = Math.min(ub, (-lb0-a+1)/a);
 				}
-				Iterator<Long> iter = domain.values(lb, ub);
+				final LongIterator iter = domain.values(lb, ub);
 				while (iter.hasNext()) {
-					long c = iter.next();
+					long c = iter.nextLong();
 					// vs[i]>=c -> ...
 					// encoder.writeComment(vs[i].getName() + " <= " + (c-1));
 					size += calcSatSize(sum, limit, vs, i+1, s+a*c);
@@ -282,9 +396,9 @@ public class OEEncoder extends Encoder {
 				if (size > limit) {
 					return size;
 				}
-				Iterator<Long> iter = domain.values(lb, ub);
+				final LongIterator iter = domain.values(lb, ub);
 				while (iter.hasNext()) {
-					long c = iter.next();
+					long c = iter.nextLong();
 					// vs[i]<=c -> ...
 					size += calcSatSize(sum, limit, vs, i+1, s+a*c);
 					if (size > limit) {
@@ -311,9 +425,181 @@ public class OEEncoder extends Encoder {
 		// System.out.println("SIMPLIFIED: "+ csp);
 		toLinearLe();
 		// System.out.println("LE: "+ csp);
+		if (OPT_BDD) {
+			toBDD();
+		}
+		if (OPT_COMPACT) {
+			compact();
+		}
 		Logger.info("CSP : " + csp.summary());
 	}
 
+	/**
+	 * 単項の比較 a*x+b <= 0 にしか現れない整数変数 x の領域を，
+	 * 比較の閾値ごとの代表値だけに縮める．
+	 * 閾値 c の代表値は c 以下の最大の値で，上限も残す．
+	 * 元の解 x は x 以上の最小の代表値に写せるので充足可能性は変わらない．
+	 * 変数の分からないリテラルがあれば何もしない．
+	 */
+	private void compact() throws SugarException {
+		final Map<IntegerVariable,TreeSet<Long>> thresholds =
+			new HashMap<IntegerVariable,TreeSet<Long>>();
+		for (IntegerVariable v : csp.getIntegerVariables()) {
+			if (v != csp.getObjectiveVariable() && v.getDomain().size() > 2) {
+				thresholds.put(v, new TreeSet<Long>());
+			}
+		}
+		for (Clause c : csp.getClauses()) {
+			for (ArithmeticLiteral al : c.getArithmeticLiterals()) {
+				if (al instanceof LinearLiteral
+						&& ((LinearLiteral)al).getOperator() == Operator.LE
+						&& ((LinearLiteral)al).getLinearExpression().size() == 1) {
+					final LinearSum ls = ((LinearLiteral)al).getLinearExpression();
+					final IntegerVariable v = ls.getVariable(0);
+					final TreeSet<Long> ts = thresholds.get(v);
+					if (ts != null) {
+						ts.add(threshold(ls.getA(v), -ls.getB()));
+					}
+				} else {
+					final Set<IntegerVariable> vs = al.getVariables();
+					if (vs == null) {
+						return;
+					}
+					for (IntegerVariable v : vs) {
+						thresholds.remove(v);
+					}
+				}
+			}
+		}
+		int count = 0;
+		long removed = 0;
+		for (IntegerVariable v : csp.getIntegerVariables()) {
+			final TreeSet<Long> ts = thresholds.get(v);
+			if (ts == null)
+				continue;
+			final IntegerDomain d = v.getDomain();
+			final TreeSet<Long> values = new TreeSet<Long>();
+			for (long c : ts.subSet(d.getLowerBound(), d.getUpperBound())) {
+				values.add(d.valueAt(d.sizeLE(c) - 1));
+			}
+			values.add(d.getUpperBound());
+			if (values.size() < d.size()) {
+				count++;
+				removed += d.size() - values.size();
+				v.setDomain(new IntegerDomain(values));
+			}
+		}
+		Logger.fine("Compacted " + count + " integer variables by removing "
+								+ removed + " values");
+	}
+
+	/*
+	 * Returns true when a literal to be split by aux variables has
+	 * decision diagrams within MAX_LINEARSUM_SIZE clauses per variable,
+	 * so that it is kept as it is and encoded by toBDD.
+	 * Up to 3 variables, the first split makes no aux variables.
+	 * The diagrams are kept in bdds for toBDD.
+	 */
+	private boolean isBDDSmall(LinearLiteral ll) throws SugarException {
+		final LinearSum ls = ll.getLinearExpression();
+		if (ls.size() <= 3 || ! ls.isDomainLargerThan(MAX_LINEARSUM_SIZE))
+			return false;
+		final long limit = MAX_LINEARSUM_SIZE * ls.size();
+		switch (ll.getOperator()) {
+		case LE: {
+			final LinearBDD bdd = new LinearBDD(ls, limit);
+			if (bdd.size() < 0)
+				return false;
+			bdds.put(new LinearSum(ls), bdd);
+			return true;
+		}
+		case EQ: {
+			final LinearBDD bdd = new LinearBDD(ls, limit);
+			if (bdd.size() < 0)
+				return false;
+			final LinearSum neg = new LinearSum(ls);
+			neg.multiply(-1);
+			final LinearBDD negBDD = new LinearBDD(neg, limit - bdd.size());
+			if (negBDD.size() < 0)
+				return false;
+			bdds.put(new LinearSum(ls), bdd);
+			bdds.put(neg, negBDD);
+			return true;
+		}
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * 3 変数以上の LinearLiteral を，直接の符号化より節が少なくなる
+	 * 場合に決定図の節に置き換える．
+	 */
+	private void toBDD() throws SugarException {
+		final String AUX_PREFIX = "RB";
+		BooleanVariable.setPrefix(AUX_PREFIX);
+		BooleanVariable.setIndex(0);
+		final List<Clause> newClauses = new ArrayList<Clause>();
+		final int size = csp.getClauses().size();
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			final Clause c = csp.getClauses().get(i);
+			csp.getClauses().set(i, null);
+			LinearLiteral ll = null;
+			for (ArithmeticLiteral al : c.getArithmeticLiterals()) {
+				if (! isSimple(al) && al instanceof LinearLiteral
+						&& ((LinearLiteral)al).getLinearExpression().size() >= 3) {
+					ll = (LinearLiteral)al;
+				}
+			}
+			if (ll == null) {
+				newClauses.add(c);
+				continue;
+			}
+			final LinearSum ls = ll.getLinearExpression();
+			if (ls.size() == 3 && hasUnitCoefficients(ls)) {
+				// no two values of the first variable share a node
+				newClauses.add(c);
+				continue;
+			}
+			// the diagram needs one more clause for its root, and always
+			// fits when the literal is kept by isBDDSmall
+			final long direct = countClauses(ls, ls.getVariablesSorted(), 0,
+					ls.getB(), MAX_LINEARSUM_SIZE * ls.size() + 2);
+			final LinearBDD built = bdds.remove(ls);
+			final LinearBDD bdd;
+			if (direct <= 2) {
+				bdd = null;
+			} else if (built != null) {
+				bdd = built.size() <= direct - 2 ? built : null;
+			} else {
+				bdd = new LinearBDD(ls, direct - 2);
+			}
+			if (bdd == null || bdd.size() < 0) {
+				newClauses.add(c);
+				continue;
+			}
+			count++;
+			if (bdd.isValid())
+				continue;
+			final Clause cls = new Clause(c.getBooleanLiterals());
+			cls.setComment(c.getComment());
+			for (ArithmeticLiteral al : c.getArithmeticLiterals()) {
+				if (al != ll) {
+					cls.add(al);
+				}
+			}
+			final Literal lit = bdd.encode(csp, newClauses);
+			if (lit != null) {
+				cls.add(lit);
+			}
+			newClauses.add(cls);
+		}
+		csp.setClauses(newClauses);
+		bdds.clear();
+		Logger.fine(count + " linear literals are encoded by decision diagrams");
+	}
+
 	/**
 	 * LinearLiteral 中の整数変数の数を制限する．
 	 */
@@ -333,6 +619,10 @@ public class OEEncoder extends Encoder {
 			for(ArithmeticLiteral al: c.getArithmeticLiterals()) {
 				if (al instanceof LinearLiteral) {
 					final LinearLiteral ll = (LinearLiteral)al;
+					if (OPT_BDD && isBDDSmall(ll)) {
+						cls.add(ll);
+						continue;
+					}
 					final LinearSum ls = simplifyLinearExpression(ll.getLinearExpression(), true, newClauses);
 					cls.add(new LinearLiteral(ls, ll.getOperator()));
 				} else {
@@ -368,13 +658,17 @@ public class OEEncoder extends Encoder {
 			// System.out.println(es[i] + " ==> " + ei);
 			if (ei.size() > 1) {
 				IntegerVariable v = new IntegerVariable(ei.getDomain());
-				v.setComment(v.getName() + " : " + ei);
+				if (SugarMain.debug >= 1) {
+					v.setComment(v.getName() + " : " + ei);
+				}
 				csp.add(v);
 				/// v == ei
 				final LinearSum auxSum = ei;
 				auxSum.subtract(new LinearSum(v));
 				final Clause aux = new Clause(new LinearLiteral(auxSum, Operator.EQ));
-				aux.setComment(v.getName() + " == " + auxSum);
+				if (SugarMain.debug >= 1) {
+					aux.setComment(v.getName() + " == " + auxSum);
+				}
 				clss.add(aux);
 				ei = new LinearSum(v);
 			}
@@ -466,7 +760,9 @@ public class OEEncoder extends Encoder {
 															 v1 : v2;
 		final IntegerVariable lv = sv == v1 ? v2 : v1;
 
-		for (long a: sv.getDomain()) {
+		final LongIterator iter = sv.getDomain().values();
+		while (iter.hasNext()) {
+			final long a = iter.nextLong();
 			final LinearLiteral xlea = new LinearLiteral(new LinearSum(1, sv, -a+1),
 																									 Operator.LE);
 			final LinearLiteral xgea = new LinearLiteral(new LinearSum(-1, sv, a+1),
@@ -474,8 +770,10 @@ public class OEEncoder extends Encoder {
 			final LinearSum ls1 = new LinearSum(-1, v, 0);
 			ls1.setA(a, lv);
 			final Clause c1 = new Clause(new LinearLiteral(ls1, Operator.LE));
-			c1.setComment(sv.getName() + " = " +a+ " =>" + v.getName() + "= "
-										+a+"*"+lv.getName());
+			if (SugarMain.debug >= 1) {
+				c1.setComment(sv.getName() + " = " +a+ " =>" + v.getName() + "= "
+											+a+"*"+lv.getName());
+			}
 			c1.add(xlea);
 			c1.add(xgea);
 			ret.add(c1);
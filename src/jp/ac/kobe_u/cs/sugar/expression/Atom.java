@@ -2,13 +2,25 @@ package jp.ac.kobe_u.cs.sugar.expression;
 
 /**
  * This class implements atomic expressions.
+ * Integer atoms keep their value as a primitive long, and the hash code
+ * is computed once at construction.
  * @author Naoyuki Tamura (tamura@kobe-u.ac.jp)
  */
 public class Atom extends Expression {
-	private Comparable atom;
+	private final String string;
+	private final long value;
+	private final int hashCode;
 
-	public Atom(Comparable atom) {
-		this.atom = atom;
+	public Atom(long value) {
+		this.string = null;
+		this.value = value;
+		hashCode = 31 + (int)(value ^ (value >>> 32));
+	}
+
+	public Atom(String string) {
+		this.string = string;
+		this.value = 0;
+		hashCode = 31 + string.hashCode();
 	}
 
 	@Override
@@ -18,30 +30,29 @@ public class Atom extends Expression {
 
 	@Override
 	public boolean isString() {
-		return atom instanceof String;
+		return string != null;
 	}
 
 	@Override
 	public boolean isString(String s) {
-		return isString() && atom.equals(s);
+		return string != null && string.equals(s);
 	}
 
 	@Override
 	public boolean isInteger() {
-		return atom instanceof Long;
+		return string == null;
 	}
 
 	@Override
 	public String stringValue() {
-		return (String)atom;
+		return string;
 	}
 
 	@Override
 	public Long integerValue() {
-		return (Long)atom;
+		return string == null ? Long.valueOf(value) : null;
 	}
 
-	@SuppressWarnings("unchecked")
 	public int compareTo(Expression x) {
 		if (x == null)
 			return 1;
@@ -49,10 +60,17 @@ public class Atom extends Expression {
 			return -1;
 		if (x instanceof LinearExpression)
 			return -1;
-		if (this.equals(x))
+		if (this == x)
 			return 0;
 		Atom another = (Atom)x;
-		return atom.compareTo(another.atom);
+		if (string == null) {
+			if (another.string != null)
+				return -1;
+			return value < another.value ? -1 : (value == another.value ? 0 : 1);
+		}
+		if (another.string == null)
+			return 1;
+		return string.compareTo(another.string);
 	}
 
 	/* (non-Javadoc)
@@ -60,10 +78,7 @@ public class Atom extends Expression {
 	 */
 	@Override
 	public int hashCode() {
-		final int PRIME = 31;
-		int result = 1;
-		result = PRIME * result + ((atom == null) ? 0 : atom.hashCode());
-		return result;
+		return hashCode;
 	}
 
 	/* (non-Javadoc)
@@ -78,17 +93,16 @@ public class Atom extends Expression {
 		if (getClass() != obj.getClass())
 			return false;
 		final Atom other = (Atom) obj;
-		if (atom == null) {
-			if (other.atom != null)
-				return false;
-		} else if (!atom.equals(other.atom))
+		if (hashCode != other.hashCode)
 			return false;
-		return true;
+		if (string == null)
+			return other.string == null && value == other.value;
+		return string.equals(other.string);
 	}
 
 	@Override
 	public String toString() {
-		return atom.toString();
+		return string == null ? Long.toString(value) : string;
 	}
 
 }
@@ -1,8 +1,9 @@
 package jp.ac.kobe_u.cs.sugar.expression;
 
+import java.lang.ref.WeakReference;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
+import java.util.WeakHashMap;
 
 import jp.ac.kobe_u.cs.sugar.SugarConstants;
 
@@ -11,11 +12,18 @@ import jp.ac.kobe_u.cs.sugar.SugarConstants;
  * @author Naoyuki Tamura (tamura@kobe-u.ac.jp)
  */
 public abstract class Expression implements Comparable<Expression> {
-	public static boolean intern = false;
-	// public static final int MAX_MAP_SIZE = 100000;
-	public static final int MAX_MAP_SIZE = 10000;
-	private static HashMap<Expression,Expression> map =
-		new HashMap<Expression,Expression>();
+	public static boolean intern = true;
+	/*
+	 * Canonical instances of the expressions built by create().
+	 * Entries disappear once nothing else refers to the expression,
+	 * so the table never holds the streamed input alive.
+	 */
+	private static WeakHashMap<Expression,WeakReference<Expression>> map =
+		new WeakHashMap<Expression,WeakReference<Expression>>();
+	private static final int SMALL_MIN = -128;
+	private static final int SMALL_MAX = 1023;
+	private static final Expression[] smallIntegers =
+		new Expression[SMALL_MAX - SMALL_MIN + 1];
 	public static final Expression DOMAIN_DEFINITION =
 		create(SugarConstants.DOMAIN_DEFINITION);
 	public static final Expression INT_DEFINITION =
@@ -112,32 +120,39 @@ public abstract class Expression implements Comparable<Expression> {
 	public static final Expression NIL =
 		create(SugarConstants.NIL);
 	public static final Expression ZERO =
-		intern(new Atom(0L));
+		create(0L);
 	public static final Expression ONE =
-		intern(new Atom(1L));
+		create(1L);
 	private String comment = null;
 
+	/**
+	 * Returns the canonical instance equal to x, registering x
+	 * when there is none yet.
+	 * Shared subexpressions thus form a DAG and equal expressions
+	 * are usually identical, which short-cuts equals().
+	 */
 	private static Expression intern(Expression x) {
 		if (intern) {
-			if (! map.containsKey(x)) {
-				if (map.size() < MAX_MAP_SIZE) {
-					map.put(x, x);
-				}
-			} else {
-				// System.out.println("Found " + x);
+			WeakReference<Expression> ref = map.get(x);
+			if (ref != null) {
+				Expression y = ref.get();
+				if (y != null)
+					return y;
 			}
+			map.put(x, new WeakReference<Expression>(x));
 		}
 		return x;
 	}
 	
 	public static Expression create(long i) {
-		if (i == 0) {
-			return ZERO;
-		} else if (i == 1) {
-			return ONE;
-		} else {
-			return intern(new Atom(i));
+		if (SMALL_MIN <= i && i <= SMALL_MAX) {
+			int k = (int)(i - SMALL_MIN);
+			if (smallIntegers[k] == null) {
+				smallIntegers[k] = intern(new Atom(i));
+			}
+			return smallIntegers[k];
 		}
+		return intern(new Atom(i));
 	}
 
 	public static Expression create(String token) {
@@ -3,13 +3,8 @@ package jp.ac.kobe_u.cs.sugar.expression;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 import jp.ac.kobe_u.cs.sugar.csp.IntegerDomain;
 import jp.ac.kobe_u.cs.sugar.SugarConstants;
@@ -18,17 +13,25 @@ import jp.ac.kobe_u.cs.sugar.expression.Expression;
 
 public class LinearExpression extends Expression {
 	private long b;
-	private SortedMap<Atom,Long> coef;
+	/*
+	 * Variables sorted by Atom.compareTo and their nonzero coefficients.
+	 * Only the first n elements are used.
+	 */
+	private Atom[] vs;
+	private long[] as;
+	private int n;
 	private IntegerDomain domain = null;
 
 	public LinearExpression(long b) {
-		coef = new TreeMap<Atom,Long>();
+		vs = new Atom[2];
+		as = new long[2];
+		n = 0;
 		this.b = b;
 	}
 
 	public LinearExpression(long a0, Atom v0, long b) {
 		this(b);
-		coef.put(v0, a0);
+		setA(a0, v0);
 	}
 
 	public LinearExpression(Atom v0) {
@@ -37,15 +40,16 @@ public class LinearExpression extends Expression {
 
 	public LinearExpression(LinearExpression e) {
 		b = e.b;
-		coef = new TreeMap<Atom,Long>(e.coef);
+		n = e.n;
+		vs = Arrays.copyOf(e.vs, Math.max(n, 2));
+		as = Arrays.copyOf(e.as, Math.max(n, 2));
 		domain = null;
 	}
 
 	public Expression toSeqExpression() {
-		Set<Atom> vars = coef.keySet();
 		List<Expression> args = new ArrayList<Expression>();
-		for (Atom var : vars) {
-			args.add(var.mul(coef.get(var)));
+		for (int i = 0; i < n; i++) {
+			args.add(vs[i].mul(as[i]));
 		}
 		args.add(Expression.create(b));
 		return Expression.add(args);
@@ -56,7 +60,7 @@ public class LinearExpression extends Expression {
 	 * @return the size
 	 */
 	public int size() {
-		return coef.size();
+		return n;
 	}
 
 	public long getB() {
@@ -67,32 +71,119 @@ public class LinearExpression extends Expression {
 		this.b = b;
 	}
 
-	public SortedMap<Atom,Long> getCoef() {
-		return coef;
+	/**
+	 * Returns the i-th variable in the order of Atom.compareTo.
+	 * @param i the index
+	 * @return the variable
+	 */
+	public Atom getVariable(int i) {
+		return vs[i];
+	}
+
+	/**
+	 * Returns the coefficient of the i-th variable.
+	 * @param i the index
+	 * @return the coefficient
+	 */
+	public long getA(int i) {
+		return as[i];
 	}
 
-	public Set<Atom> getVariables() {
-		return coef.keySet();
+	/**
+	 * Returns the variables as a list.
+	 * @return the variables
+	 */
+	public List<Atom> getVariables() {
+		return Arrays.asList(vs).subList(0, n);
 	}
 
 	public boolean isIntegerVariable() {
-		return b == 0 && size() == 1 && getA(coef.firstKey()) == 1;
+		return b == 0 && n == 1 && as[0] == 1;
 	}
 
-	public Long getA(Atom v) {
-		Long a = coef.get(v);
-		if (a == null) {
-			a = 0L;
+	/*
+	 * Returns the index of v, or -(insertion point)-1.
+	 */
+	private int indexOf(Atom v) {
+		int lo = 0;
+		int hi = n - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			final int c = vs[mid].compareTo(v);
+			if (c < 0) {
+				lo = mid + 1;
+			} else if (c > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
 		}
-		return a;
+		return -(lo + 1);
+	}
+
+	public long getA(Atom v) {
+		final int i = indexOf(v);
+		return i >= 0 ? as[i] : 0;
 	}
 
 	public void setA(long a, Atom v) {
-		if (a == 0) {
-			coef.remove(v);
-		} else {
-			coef.put(v, a);
+		int i = indexOf(v);
+		if (i >= 0) {
+			if (a == 0) {
+				System.arraycopy(vs, i + 1, vs, i, n - i - 1);
+				System.arraycopy(as, i + 1, as, i, n - i - 1);
+				n--;
+				vs[n] = null;
+			} else {
+				as[i] = a;
+			}
+		} else if (a != 0) {
+			i = -(i + 1);
+			if (n == vs.length) {
+				vs = Arrays.copyOf(vs, 2*n);
+				as = Arrays.copyOf(as, 2*n);
+			}
+			System.arraycopy(vs, i, vs, i + 1, n - i);
+			System.arraycopy(as, i, as, i + 1, n - i);
+			vs[i] = v;
+			as[i] = a;
+			n++;
+		}
+		domain = null;
+	}
+
+	/*
+	 * Sets this to this + c*linearExpression by merging the sorted arrays.
+	 */
+	private void add(long c, LinearExpression linearExpression) {
+		final int m = linearExpression.n;
+		final Atom[] vs0 = new Atom[Math.max(n + m, 2)];
+		final long[] as0 = new long[vs0.length];
+		int k = 0;
+		int i = 0;
+		int j = 0;
+		while (i < n || j < m) {
+			final int cmp = i >= n ? 1 : j >= m ? -1 : vs[i].compareTo(linearExpression.vs[j]);
+			if (cmp < 0) {
+				vs0[k] = vs[i];
+				as0[k++] = as[i++];
+			} else if (cmp > 0) {
+				vs0[k] = linearExpression.vs[j];
+				as0[k++] = c * linearExpression.as[j++];
+			} else {
+				final long a = as[i] + c * linearExpression.as[j];
+				if (a != 0) {
+					vs0[k] = vs[i];
+					as0[k++] = a;
+				}
+				i++;
+				j++;
+			}
 		}
+		b += c * linearExpression.b;
+		vs = vs0;
+		as = as0;
+		n = k;
 		domain = null;
 	}
 
@@ -101,12 +192,7 @@ public class LinearExpression extends Expression {
 	 * @param linearSum the linear expression to be added.
 	 */
 	public void add(LinearExpression linearExpression) {
-		b += linearExpression.b;
-		for (Atom v : linearExpression.coef.keySet()) {
-			long a = getA(v) + linearExpression.getA(v);
-			setA(a, v);
-		}
-		domain = null;
+		add(1, linearExpression);
 	}
 
 	/**
@@ -114,12 +200,24 @@ public class LinearExpression extends Expression {
 	 * @param linearSum the linear expression to be subtracted.
 	 */
 	public void subtract(LinearExpression linearExpression) {
-		b -= linearExpression.b;
-		for (Atom v : linearExpression.coef.keySet()) {
-			long a = getA(v) - linearExpression.getA(v);
-			setA(a, v);
+		add(-1, linearExpression);
+	}
+
+	/*
+	 * Removes zero coefficients.
+	 */
+	private void compact() {
+		int k = 0;
+		for (int i = 0; i < n; i++) {
+			if (as[i] != 0) {
+				vs[k] = vs[i];
+				as[k++] = as[i];
+			}
 		}
-		domain = null;
+		for (int i = k; i < n; i++) {
+			vs[i] = null;
+		}
+		n = k;
 	}
   
 	/**
@@ -128,28 +226,27 @@ public class LinearExpression extends Expression {
 	 */
 	public void multiply(long c) {
 		b *= c;
-		for (Atom v : coef.keySet()) {
-			long a = c * getA(v);
-			setA(a, v);
+		for (int i = 0; i < n; i++) {
+			as[i] *= c;
 		}
+		compact();
 		domain = null;
 	}
 
 	public void divide(long c) {
 		b /= c;
-		for (Atom v : coef.keySet()) {
-			long a = getA(v) / c;
-			setA(a, v);
+		for (int i = 0; i < n; i++) {
+			as[i] /= c;
 		}
+		compact();
 		domain = null;
 	}
 
 	public IntegerDomain getDomain(Map<String, IntegerDomain> m) throws SugarException {
 		if (domain == null) {
 			domain = new IntegerDomain(b, b);
-			for (Atom v : coef.keySet()) {
-				long a = getA(v);
-				domain = domain.add(m.get(v.toString()).mul(a));
+			for (int i = 0; i < n; i++) {
+				domain = domain.add(m.get(vs[i].toString()).mul(as[i]));
 			}
 		}
 		return domain;
@@ -165,7 +262,13 @@ public class LinearExpression extends Expression {
 			return false;
 		if (this == linearExpression)
 			return true;
-		return b == linearExpression.b && coef.equals(linearExpression.coef);
+		if (b != linearExpression.b || n != linearExpression.n)
+			return false;
+		for (int i = 0; i < n; i++) {
+			if (as[i] != linearExpression.as[i] || ! vs[i].equals(linearExpression.vs[i]))
+				return false;
+		}
+		return true;
 	}
 	
 	/**
@@ -194,24 +297,18 @@ public class LinearExpression extends Expression {
 		if (this.equals(x))
 			return 0;
 		LinearExpression another = (LinearExpression)x;
-		if (coef.size() < another.coef.size())
+		if (n < another.n)
 			return -1;
-		if (coef.size() > another.coef.size())
+		if (n > another.n)
 			return 1;
-		Iterator<Atom> it1 = coef.keySet().iterator();
-		Iterator<Atom> it2 = coef.keySet().iterator();
-		while(it1.hasNext()) {
-			assert it2.hasNext();
-			Atom v1 = it1.next();
-			Atom v2 = it2.next();
-			int cv = v1.compareTo(v2);
+		for (int i = 0; i < n; i++) {
+			int cv = vs[i].compareTo(another.vs[i]);
 			if (cv != 0)
 				return cv;
-			int ca = getA(v1).compareTo(another.getA(v2));
-			if (ca != 0)
-				return ca;
+			if (as[i] != another.as[i])
+				return as[i] < another.as[i] ? -1 : 1;
 		}
-		return ((Long)b).compareTo(another.b);
+		return b < another.b ? -1 : b > another.b ? 1 : 0;
 	}
 
 	/**
@@ -222,7 +319,11 @@ public class LinearExpression extends Expression {
 	public int hashCode() {
 		final int PRIME = 31;
 		int result = 1;
-		result = PRIME * result + ((coef == null) ? 0 : coef.hashCode());
+		int h = 0;
+		for (int i = 0; i < n; i++) {
+			h += vs[i].hashCode() ^ (int)(as[i] ^ (as[i] >>> 32));
+		}
+		result = PRIME * result + h;
 		result = PRIME * result + (int)b;
 		return result;
 	}
@@ -231,16 +332,16 @@ public class LinearExpression extends Expression {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
     sb.append("(add ");
-		for (Atom v : coef.keySet()) {
-			long c = getA(v);
+		for (int i = 0; i < n; i++) {
+			long c = as[i];
 			if (c == 0) {
 			}else if(c == 1) {
-        sb.append(v.toString());
+        sb.append(vs[i].toString());
       }else{
         sb.append("(mul ");
         sb.append(c);
         sb.append(" ");
-        sb.append(v.toString());
+        sb.append(vs[i].toString());
         sb.append(")");
       }
       sb.append(" ");
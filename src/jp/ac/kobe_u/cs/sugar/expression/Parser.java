@@ -2,10 +2,17 @@ package jp.ac.kobe_u.cs.sugar.expression;
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.StreamTokenizer;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -16,6 +23,8 @@ import jp.ac.kobe_u.cs.sugar.Logger;
 
 /**
  * The Parser class parses an input and constructs a list of expressions.
+ * The input is tokenized byte by byte as UTF-8,
+ * and integers are parsed without creating Strings.
  * @see Expression
  * @author Naoyuki Tamura
  */
@@ -41,98 +50,303 @@ public class Parser {
 		conv.put("%",  Expression.MOD);
 	}
 
-	private StreamTokenizer st;
+	public static int BUFFER_SIZE = 1024*1024;
+	public static long MAP_SIZE = 64*1024*1024;
+
+	private static final int EOF = -1;
+	private static final int WORD = -2;
+
+	private static final boolean[] wordChars = new boolean[256];
+
+	static {
+		for (int c = 'A'; c <= 'Z'; c++) {
+			wordChars[c] = true;
+		}
+		for (int c = 'a'; c <= 'z'; c++) {
+			wordChars[c] = true;
+		}
+		for (int c = '0'; c <= '9'; c++) {
+			wordChars[c] = true;
+		}
+		for (char c : "_+-*/%=<>!&|".toCharArray()) {
+			wordChars[c] = true;
+		}
+		for (int c = 0x80; c < 0x100; c++) {
+			wordChars[c] = true;
+		}
+	}
+
+	private ReadableByteChannel channel = null;
+	private Reader reader = null;
+	private CharsetEncoder encoder = null;
+	private CharBuffer chars = null;
+	private ByteBuffer buf;
+	private boolean mapped = false;
+	private boolean eof = false;
+	private final boolean permitInternal;
+	private int lineno = 1;
+	private int count = 0;
+
+	/*
+	 * The current word.  When it is an integer, isNumber is set and
+	 * the value is stored in number without creating a String.
+	 */
+	private byte[] word = new byte[64];
+	private int wordLength;
+	private boolean isNumber;
+	private long number;
 
 	/**
 	 * Constructs a new parser.
 	 * @param reader an input reader
 	 */
 	public Parser(BufferedReader reader, boolean permitInternal) {
-		// this.reader = reader;
-		st = new StreamTokenizer(reader);
-		st.resetSyntax();
-		st.commentChar(';');
-		st.whitespaceChars(0x0000, 0x0020);
-		st.wordChars('A', 'Z');
-		st.wordChars('a', 'z');
-		st.wordChars('_', '_');
-		st.wordChars('0', '9');
-		char[] chars = {
-			'+', '-', '*', '/', '%',
-				'=', '<', '>', '!', '&', '|' };
-		for (char c : chars) {
-			st.wordChars(c, c);
-		}
-		if(permitInternal) {
-			st.wordChars('$', '$');
-		}
-		st.wordChars(0x000080, 0x10FFFF);
-		st.eolIsSignificant(false);
+		this.reader = reader;
+		this.permitInternal = permitInternal;
+		encoder = Charset.forName("UTF-8").newEncoder();
+		chars = CharBuffer.allocate(BUFFER_SIZE);
+		chars.flip();
+		buf = ByteBuffer.allocate(BUFFER_SIZE);
+		buf.flip();
 	}
 
 	/**
-	 * Parses the input and returns a list of expressions.
+	 * Constructs a new parser reading UTF-8 bytes from the input stream.
+	 * A file larger than MAP_SIZE bytes is memory-mapped.
+	 * @param in an input stream
+	 */
+	public Parser(InputStream in, boolean permitInternal) throws IOException {
+		this.permitInternal = permitInternal;
+		if (in instanceof FileInputStream) {
+			final FileChannel ch = ((FileInputStream)in).getChannel();
+			final long size = ch.size() - ch.position();
+			if (size > MAP_SIZE && size <= Integer.MAX_VALUE) {
+				buf = ch.map(FileChannel.MapMode.READ_ONLY, ch.position(), size);
+				mapped = true;
+				return;
+			}
+			channel = ch;
+		} else {
+			channel = Channels.newChannel(in);
+		}
+		buf = ByteBuffer.allocate(BUFFER_SIZE);
+		buf.flip();
+	}
+
+	/**
+	 * Fills the buffer.
+	 * @return false at the end of the input
+	 */
+	private boolean fill() throws IOException {
+		if (mapped || eof) {
+			return false;
+		}
+		buf.clear();
+		try {
+			if (channel != null) {
+				while (buf.position() == 0) {
+					if (channel.read(buf) < 0) {
+						eof = true;
+						return false;
+					}
+				}
+			} else {
+				while (buf.position() == 0) {
+					chars.compact();
+					final int n = reader.read(chars);
+					chars.flip();
+					if (n < 0) {
+						if (encoder.encode(chars, buf, true).isUnderflow()) {
+							encoder.flush(buf);
+							eof = true;
+						}
+						return buf.position() > 0;
+					} else {
+						encoder.encode(chars, buf, false);
+					}
+				}
+			}
+		} finally {
+			buf.flip();
+		}
+		return true;
+	}
+
+	private int peek() throws IOException {
+		if (! buf.hasRemaining() && ! fill()) {
+			return EOF;
+		}
+		return buf.get(buf.position()) & 0xFF;
+	}
+
+	private boolean isWordChar(int c) {
+		return wordChars[c] || (c == '$' && permitInternal);
+	}
+
+	/**
+	 * Reads the next token.
+	 * @return WORD, EOF, or the character
+	 */
+	private int nextToken() throws IOException {
+		int c;
+		while (true) {
+			c = peek();
+			if (c == EOF) {
+				return EOF;
+			} else if (c <= 0x20) {
+				buf.get();
+				if (c == '\n') {
+					lineno++;
+				}
+			} else if (c == ';') {
+				while ((c = peek()) != EOF && c != '\n' && c != '\r') {
+					buf.get();
+				}
+			} else {
+				break;
+			}
+		}
+		if (! isWordChar(c)) {
+			buf.get();
+			return c;
+		}
+		wordLength = 0;
+		isNumber = true;
+		number = 0;
+		boolean overflow = false;
+		while (c != EOF && isWordChar(c)) {
+			buf.get();
+			if (wordLength == word.length) {
+				final byte[] word1 = new byte[2 * word.length];
+				System.arraycopy(word, 0, word1, 0, wordLength);
+				word = word1;
+			}
+			word[wordLength] = (byte)c;
+			if (isNumber) {
+				if ('0' <= c && c <= '9') {
+					final long n = 10 * number - (c - '0');
+					overflow |= number < Long.MIN_VALUE / 10 || n > 0;
+					number = n;
+				} else if (c != '-' || wordLength > 0) {
+					isNumber = false;
+				}
+			}
+			wordLength++;
+			c = peek();
+		}
+		if (isNumber) {
+			// the value is accumulated as a negative number
+			final boolean negative = word[0] == '-';
+			if (negative && wordLength == 1) {
+				isNumber = false;
+			} else {
+				if (! negative) {
+					overflow |= number == Long.MIN_VALUE;
+					number = - number;
+				}
+				if (overflow) {
+					throw new IOException("Integer overflow " + getWord() + " at line " + lineno);
+				}
+			}
+		}
+		return WORD;
+	}
+
+	private String getWord() throws IOException {
+		final char[] cs = new char[wordLength];
+		for (int i = 0; i < wordLength; i++) {
+			if (word[i] < 0) {
+				return new String(word, 0, wordLength, "UTF-8");
+			}
+			cs[i] = (char)word[i];
+		}
+		return new String(cs);
+	}
+
+	/**
+	 * Parses the next top-level expression of the input.
 	 * 
-	 * @return a list of expressions
+	 * @return the expression, or null at the end of the input
 	 * @throws IOException 
 	 */
-	public List<Expression> parse() throws IOException {
-		Stack<List<Expression>> stack = new Stack<List<Expression>>();
-		List<Expression> expressions = new ArrayList<Expression>();
-		st.nextToken();
-		while (st.ttype != StreamTokenizer.TT_EOF) {
+	public Expression next() throws IOException {
+		final Stack<List<Expression>> stack = new Stack<List<Expression>>();
+		List<Expression> expressions = null;
+		int token;
+		while ((token = nextToken()) != EOF) {
 			Expression x;
-			switch (st.ttype) {
-			case StreamTokenizer.TT_WORD:
-				String s = st.sval;
-				// x = conv.get(s);
-				// if (x == null) {
-				// 	x = Expression.create(s);
-				// }
-				if (s.matches("-??[0-9]+")) {
-					final long value = Long.parseLong(s);
-					x = Expression.create(value);
+			switch (token) {
+			case WORD:
+				if (isNumber) {
+					x = Expression.create(number);
 				} else {
+					final String s = getWord();
 					x = conv.get(s);
 					if (x == null) {
 						x = Expression.create(s);
 					}
 				}
+				if (expressions == null) {
+					count++;
+					return x;
+				}
 				expressions.add(x);
 				break;
-			case '-':
-				expressions.add(conv.get("-"));
-				break;
 			case '(':
-				stack.push(expressions);
+				if (expressions != null) {
+					stack.push(expressions);
+				}
 				expressions = new ArrayList<Expression>();
 				break;
 			case ')':
+				if (expressions == null) {
+					throw new IOException("Too many right paren at line " + lineno);
+				}
 				if (expressions.size() == 2 && expressions.get(0).equals(Expression.SUB)) {
 					expressions.remove(0);
 					expressions.add(0, Expression.NEG);
 				}
 				x = Expression.create(expressions);
 				if (stack.isEmpty()) {
-					throw new IOException("Too many right paren at line " + st.lineno());
+					count++;
+					if (count % 10000 == 0) {
+						Logger.fine("parsed " + count + " expressions");
+					}
+					return x;
 				}
 				expressions = stack.pop();
 				expressions.add(x);
-				if (stack.isEmpty()) {
-					int n = expressions.size();
-					if (n % 10000 == 0) {
-						Logger.fine("parsed " + n + " expressions");
-					}
-				}
 				break;
 			default:
-				char c = (char)st.ttype;
-				throw new IOException("Bad character " + c + " at line " + st.lineno());
+				char c = (char)token;
+				throw new IOException("Bad character " + c + " at line " + lineno);
 			}
-			st.nextToken();
 		}
-		if (! stack.isEmpty()) {
-			throw new IOException("Missing right paren at line " + st.lineno());
+		if (expressions != null) {
+			throw new IOException("Missing right paren at line " + lineno);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of top-level expressions parsed so far.
+	 * @return the number of expressions
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Parses the input and returns a list of expressions.
+	 * 
+	 * @return a list of expressions
+	 * @throws IOException 
+	 */
+	public List<Expression> parse() throws IOException {
+		final List<Expression> expressions = new ArrayList<Expression>();
+		Expression x;
+		while ((x = next()) != null) {
+			expressions.add(x);
 		}
 		return expressions;
 	}
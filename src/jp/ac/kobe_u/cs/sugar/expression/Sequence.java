@@ -14,7 +14,7 @@ import jp.ac.kobe_u.cs.sugar.SugarException;
 public class Sequence extends Expression {
 	public static boolean flatten = true;
 	private Expression[] expressions;
-	private Integer hashCode = null;
+	private int hashCode;
 
 	public Sequence(Expression[] expressions) {
 		this.expressions = expressions;
@@ -60,7 +60,7 @@ public class Sequence extends Expression {
 				}
 			}
 		}
-		hashCode = hashCode();
+		hashCode = 31 + Arrays.hashCode(expressions);
 	}
 	
 	public Expression get(int i) {
@@ -149,11 +149,6 @@ public class Sequence extends Expression {
 	 */
 	@Override
 	public int hashCode() {
-		if (hashCode == null) {
-			final int PRIME = 31;
-			int result = 1;
-			hashCode = PRIME * result + Arrays.hashCode(expressions);
-		}
 		return hashCode;
 	}
 
@@ -169,6 +164,8 @@ public class Sequence extends Expression {
 		if (getClass() != obj.getClass())
 			return false;
 		final Sequence other = (Sequence) obj;
+		if (hashCode != other.hashCode)
+			return false;
 		if (!Arrays.equals(expressions, other.expressions))
 			return false;
 		return true;